@@ -0,0 +1,44 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.gedcom.exception.InvalidLevel;
+import nu.mine.mosher.gedcom.model.Loader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Loads in-memory OLD and NEW GEDCOM trees, of a given number of INDIs, for the benchmarks.
+ * See {@link GedcomPairGenerator} for how NEW differs from OLD.
+ */
+final class BenchmarkTrees {
+    private BenchmarkTrees() {
+        throw new IllegalStateException();
+    }
+
+    /**
+     * @return OLD and NEW, in that order
+     */
+    static Loader[] loadPair(final int cIndi) throws IOException, InvalidLevel {
+        final String[] pair = generatePair(cIndi);
+        return new Loader[] { load(pair[0], "old.ged"), load(pair[1], "new.ged") };
+    }
+
+    /**
+     * @return the GEDCOM text of OLD and NEW, in that order
+     */
+    static String[] generatePair(final int cIndi) throws IOException {
+        final StringWriter old = new StringWriter(cIndi * 512);
+        final StringWriter anc = new StringWriter(cIndi * 512);
+        GedcomPairGenerator.generate(cIndi, 1L, old, anc);
+        return new String[] { old.toString(), anc.toString() };
+    }
+
+    static Loader load(final String text, final String name) throws IOException, InvalidLevel {
+        final byte[] gedcom = text.getBytes(StandardCharsets.UTF_8);
+        final GedcomTree gt = Gedcom.readFile(new BufferedInputStream(new ByteArrayInputStream(gedcom)));
+        new GedcomConcatenator(gt).concatenate();
+        final Loader loader = new Loader(gt, name);
+        loader.parse();
+        return loader;
+    }
+}
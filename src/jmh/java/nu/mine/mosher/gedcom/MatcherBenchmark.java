@@ -0,0 +1,200 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.collection.TreeNode;
+import nu.mine.mosher.gedcom.exception.InvalidLevel;
+import nu.mine.mosher.gedcom.model.Loader;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the matcher's hot paths, on generated trees of {@link #size} INDIs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MatcherBenchmark {
+    @Param({"1000", "10000"})
+    public int size;
+
+    private Loader oldLoad;
+    private Loader newLoad;
+    private List<TreeNode<GedcomLine>> newIndis;
+    private List<TreeNode<GedcomLine>[]> itemPairs;
+    private List<TreeNode<GedcomLine>[]> itemTops;
+    private Map<String, String> mapFlipIds;
+    private String[] ranges;
+    private final GedcomMatcher matcher = new GedcomMatcher();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InvalidLevel {
+        final Loader[] loads = BenchmarkTrees.loadPair(this.size);
+        this.oldLoad = loads[0];
+        this.newLoad = loads[1];
+
+        this.newIndis = new ArrayList<>(this.size);
+        this.mapFlipIds = new HashMap<>();
+        for (final TreeNode<GedcomLine> top : this.newLoad.getGedcom().getRoot()) {
+            final GedcomLine line = top.getObject();
+            if (line.getTag().equals(GedcomTag.INDI)) {
+                this.newIndis.add(top);
+            }
+            if (line.hasID()) {
+                // maps in both directions, so remapping repeatedly flips IDs back and forth
+                this.mapFlipIds.put(line.getID(), "X" + line.getID());
+                this.mapFlipIds.put("X" + line.getID(), line.getID());
+            }
+        }
+
+        this.itemPairs = new ArrayList<>();
+        this.itemTops = new ArrayList<>();
+        final Iterator<TreeNode<GedcomLine>> iNew = this.newIndis.iterator();
+        for (final TreeNode<GedcomLine> top : this.oldLoad.getGedcom().getRoot()) {
+            if (top.getObject().getTag().equals(GedcomTag.INDI) && iNew.hasNext()) {
+                final TreeNode<GedcomLine> topNew = iNew.next();
+                for (final TreeNode<GedcomLine> item : top) {
+                    @SuppressWarnings("unchecked")
+                    final TreeNode<GedcomLine>[] itemTop = new TreeNode[] { item, topNew };
+                    this.itemTops.add(itemTop);
+                    for (final TreeNode<GedcomLine> itemNew : topNew) {
+                        @SuppressWarnings("unchecked")
+                        final TreeNode<GedcomLine>[] pair = new TreeNode[] { item, itemNew, topNew };
+                        this.itemPairs.add(pair);
+                    }
+                }
+            }
+        }
+
+        this.ranges = new String[] { "FROM 1870 TO 1880", "FROM 12 MAR 1855", "TO ABT 1900", "FROM JAN 1901 TO DEC 1910" };
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() {
+        this.matcher.reset();
+    }
+
+    @Benchmark
+    public void heuristicRestoreId() {
+        final RecordPass indexNew = new RecordPass();
+        final RecordPass matchOld = new RecordPass();
+        this.matcher.heuristicRestoreId(indexNew, matchOld, GedcomTag.SOUR, GedcomTag.TITL);
+        indexNew.run(this.newLoad.getGedcom().getRoot());
+        matchOld.run(this.oldLoad.getGedcom().getRoot());
+    }
+
+    @Benchmark
+    public void heuristicRestoreIdIndis() {
+        final RecordPass indexNew = new RecordPass();
+        final RecordPass matchOld = new RecordPass();
+        this.matcher.heuristicRestoreIdIndis(indexNew, matchOld);
+        indexNew.run(this.newLoad.getGedcom().getRoot());
+        matchOld.run(this.oldLoad.getGedcom().getRoot());
+    }
+
+    @Benchmark
+    public void heuristicRestoreIdObjes() {
+        final RecordPass indexNew = new RecordPass();
+        final RecordPass matchOld = new RecordPass();
+        this.matcher.heuristicRestoreIdObjes(indexNew, matchOld);
+        indexNew.run(this.newLoad.getGedcom().getRoot());
+        matchOld.run(this.oldLoad.getGedcom().getRoot());
+    }
+
+    @Benchmark
+    public void itemsMatch(final Blackhole bh) {
+        for (final TreeNode<GedcomLine>[] pair : this.itemPairs) {
+            bh.consume(this.matcher.itemsMatch(pair[0], pair[1], pair[2]));
+        }
+    }
+
+    /*
+    the same matching as itemsMatch, by EventIndex (including building the indexes)
+     */
+    @Benchmark
+    public void eventIndex(final Blackhole bh) {
+        final RecordViews views = new RecordViews();
+        for (final TreeNode<GedcomLine>[] itemTop : this.itemTops) {
+            bh.consume(views.events(itemTop[1]).matches(itemTop[0], views));
+        }
+    }
+
+    @Benchmark
+    public void isUnique(final Blackhole bh) {
+        for (final TreeNode<GedcomLine> indi : this.newIndis) {
+            bh.consume(this.matcher.isUnique(GedcomTag.RESI, "", indi));
+            bh.consume(this.matcher.isUnique(GedcomTag.EVEN, "military", indi));
+        }
+    }
+
+    @Benchmark
+    public void getBirthYear(final Blackhole bh) {
+        for (final TreeNode<GedcomLine> indi : this.newIndis) {
+            bh.consume(this.matcher.getBirthYear(indi));
+        }
+    }
+
+    /*
+    remapIds delegates to IdRemapper; the map flips each ID, so every invocation rewrites every ID and pointer.
+     */
+    @Benchmark
+    public int remapIds() {
+        return new IdRemapper(this.mapFlipIds).remap(this.newLoad.getGedcom().getRoot());
+    }
+
+    @Benchmark
+    public void cvtRangeToPeriod(final Blackhole bh) {
+        for (int i = 0; i < this.size; ++i) {
+            bh.consume(GedcomMatcher.cvtRangeToPeriod(this.ranges[i % this.ranges.length]));
+        }
+    }
+
+    /**
+     * A fresh NEW for each invocation of {@link #saveGedcom}, which unconcatenates
+     * the tree it writes (so writing the shared NEW would change it for the other
+     * benchmarks, and for the next invocation).
+     */
+    @State(Scope.Thread)
+    public static class Unsaved {
+        private String gedcom;
+        private Loader load;
+
+        @Setup(Level.Trial)
+        public void generate(final MatcherBenchmark benchmark) throws IOException {
+            this.gedcom = BenchmarkTrees.generatePair(benchmark.size)[1];
+        }
+
+        @Setup(Level.Invocation)
+        public void load() throws IOException, InvalidLevel {
+            this.load = BenchmarkTrees.load(this.gedcom, "new.ged");
+        }
+    }
+
+    @Benchmark
+    public void saveGedcom(final Unsaved unsaved) throws IOException {
+        GedcomMatcher.saveGedcom(unsaved.load.getGedcom(), NOWHERE, false);
+    }
+
+    /*
+    The fused writer does not unconcatenate the tree it writes, so it can write the shared NEW.
+     */
+    @Benchmark
+    public void saveGedcomFused() throws IOException {
+        GedcomMatcher.saveGedcom(this.newLoad.getGedcom(), NOWHERE, true);
+    }
+
+    private static final OutputStream NOWHERE = new OutputStream() {
+        @Override
+        public void write(final int b) {
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+        }
+    };
+}
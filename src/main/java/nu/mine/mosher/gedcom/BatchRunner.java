@@ -0,0 +1,144 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.gedcom.exception.InvalidLevel;
+import nu.mine.mosher.gedcom.model.Loader;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Batch mode: merges one OLD file into each of several NEW files, in one run.
+ *
+ * OLD is loaded, and its record views are built, only once; after that it is only
+ * read. Each NEW file gets its own {@link GedcomMatcher} (so nothing matched for
+ * one NEW is seen by another), and the NEW files are merged in parallel. Each
+ * output goes to its own file, named after its NEW file: new.ged gives
+ * new.merged.ged, in the --out directory. So options for where and how a single
+ * merge is written (--output, --gzip, --patch, --apply) cannot be used.
+ *
+ * If OLD has an up-to-date index (see {@link OldIndex}), it is used instead of
+ * loading OLD. Otherwise, OLD's match keys (see {@link GedcomMatcher#oldMatchKeys})
+ * are found once, and each NEW file is matched to them, as to an index's keys.
+ * (Except for fuzzy matching, which runs over all of OLD for each NEW file.)
+ *
+ * With --incremental, each merge keeps its own match state (see {@link MatchState})
+ * next to its output: new.merged.ged.state.
+ *
+ * Log messages from the merges are interleaved, and their metrics are summed.
+ */
+final class BatchRunner {
+    private BatchRunner() {
+        throw new IllegalStateException();
+    }
+
+    static void run(final Options options, final Metrics metrics) throws IOException, InvalidLevel {
+        for (final String single : Arrays.asList("output", "gzip", "patch", "apply")) {
+            if (options.has(single)) {
+                throw new IllegalArgumentException("--" + single + " cannot be used with --batch, which writes each merge to its own file (in the --out directory).");
+            }
+        }
+        final List<String> files = options.positional();
+        final String oldFilename = files.get(0);
+        final List<String> newFilenames = files.subList(1, files.size());
+        final File dirOut = new File(options.get("out", "."));
+        final boolean stream = options.has("stream");
+        final boolean fused = options.has("fused-write");
+        final boolean fuzzy = options.has("fuzzy");
+        final boolean incremental = options.has("incremental");
+        final boolean parallelPhases = !GedcomMatcher.sequentialPhases(options);
+        final int cThreads = Math.max(1, Math.min(newFilenames.size(), options.getInt("threads", Runtime.getRuntime().availableProcessors())));
+
+        final Map<String, File> mapNewToOut = new LinkedHashMap<>();
+        final Set<File> outs = new HashSet<>();
+        for (final String newFilename : newFilenames) {
+            final File out = outputFile(dirOut, newFilename);
+            if (!outs.add(out)) {
+                throw new IllegalArgumentException("Two NEW files would both be written to " + out);
+            }
+            mapNewToOut.put(newFilename, out);
+        }
+
+        final OldIndex oldIndex = GedcomMatcher.openIndex(options);
+        final Loader oldLoad = oldIndex != null ? null : GedcomLoader.load(oldFilename);
+        final RecordLookup oldRecords = oldIndex != null ? oldIndex : RecordLookup.of(oldLoad.getGedcom());
+        final RecordViews oldViews = RecordViews.prebuilt(oldRecords.getRoot());
+        final YearResolver years = new YearResolver();
+        final List<OldIndex.Key> oldKeys;
+        if (oldIndex != null) {
+            oldKeys = oldIndex.keys();
+        } else if (fuzzy) {
+            oldKeys = null;
+        } else {
+            oldKeys = GedcomMatcher.oldMatchKeys(oldRecords.getRoot(), oldViews, years);
+        }
+        Log.info("Batch: {} NEW files, {} at a time.", newFilenames.size(), cThreads);
+
+        final ExecutorService pool = Executors.newFixedThreadPool(cThreads, r -> {
+            final Thread t = new Thread(r, "gedcom-batch");
+            t.setDaemon(true);
+            return t;
+        });
+        final Map<String, Future<?>> pending = new LinkedHashMap<>();
+        try {
+            mapNewToOut.forEach((newFilename, out) -> pending.put(newFilename, pool.submit(() -> {
+                final GedcomMatcher matcher = new GedcomMatcher(fuzzy, oldViews, years);
+                final MatchState state = incremental ? MatchState.load(new File(out.getPath() + ".state"), oldFilename, fuzzy) : null;
+                matcher.incremental(state);
+                matcher.metrics(metrics);
+                matcher.parallelPhases(parallelPhases);
+                merge(oldRecords, oldKeys, newFilename, out, matcher, stream, fused);
+                GedcomMatcher.saveState(state);
+                return null;
+            })));
+
+            int cFailed = 0;
+            for (final Map.Entry<String, Future<?>> merge : pending.entrySet()) {
+                try {
+                    merge.getValue().get();
+                } catch (final ExecutionException e) {
+                    ++cFailed;
+                    Log.error("ERROR: merge of {} failed: {}", merge.getKey(), e.getCause());
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Batch interrupted");
+                }
+            }
+            if (cFailed > 0) {
+                throw new IOException(cFailed + " of " + pending.size() + " merges failed.");
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /*
+    Merges using either the OLD tree or its index, matching OLD's keys
+    (or, if there are none, all of OLD).
+     */
+    private static void merge(final RecordLookup oldRecords, final List<OldIndex.Key> oldKeys, final String newFilename, final File out, final GedcomMatcher matcher, final boolean stream, final boolean fused) throws IOException, InvalidLevel {
+        final long start = System.nanoTime();
+        Log.info("Batch: merging {} into {}", newFilename, out);
+        if (stream) {
+            try (final GedcomRecordWriter writer = new GedcomRecordWriter(new FileOutputStream(out), 60)) {
+                matcher.streamAndUpdate(oldRecords, oldKeys, newFilename, writer);
+            }
+        } else {
+            final Loader newLoad = GedcomLoader.load(newFilename);
+            matcher.matchAndUpdate(oldRecords, oldKeys, newLoad.getGedcom());
+            try (final OutputStream writer = new FileOutputStream(out)) {
+                GedcomMatcher.saveGedcom(newLoad.getGedcom(), writer, fused);
+            }
+        }
+        Log.info("Batch: finished {} in {} ms.", newFilename, (System.nanoTime() - start) / 1_000_000L);
+    }
+
+    static File outputFile(final File dirOut, final String newFilename) {
+        String name = new File(newFilename).getName();
+        final int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return new File(dirOut, name + ".merged.ged");
+    }
+}
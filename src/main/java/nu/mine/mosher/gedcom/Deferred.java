@@ -0,0 +1,159 @@
+package nu.mine.mosher.gedcom;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+/**
+ * Visits items (top-level records) in parallel, in chunks on a fork-join pool
+ * (idle workers steal chunks from busy ones), while keeping the effects that
+ * depend on order in the order of the items.
+ *
+ * While a chunk is visited, effects passed to {@link #run} (nodes queued for NEW,
+ * log lines, report lines) are kept in a buffer of the visiting thread. After all
+ * chunks are done, the buffers are run chunk by chunk, so the effects happen just
+ * as they would have in one sequential visit. Anything else a visitor changes must
+ * belong to its own item only (such as the item's counterpart in NEW), or to its
+ * group (see {@link #forEachInOrder(List, Function, Consumer)}).
+ */
+final class Deferred {
+    private static final int CHUNK = 128;
+    private static final ThreadLocal<List<Runnable>> buffer = new ThreadLocal<>();
+
+    private Deferred() {
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Runs the given effect now, or, while visiting a chunk, after all the chunks
+     * before this one.
+     */
+    static void run(final Runnable effect) {
+        final List<Runnable> effects = buffer.get();
+        if (effects == null) {
+            effect.run();
+        } else {
+            effects.add(effect);
+        }
+    }
+
+    static <T> void forEachInOrder(final List<T> items, final Consumer<T> visitor) {
+        final int cChunks = (items.size() + CHUNK - 1) / CHUNK;
+        if (cChunks == 0) {
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        final List<Runnable>[] effects = new List[cChunks];
+        ForkJoinPool.commonPool().invoke(new Chunks(cChunks, c -> effects[c] = collect(() -> {
+            final int end = Math.min(items.size(), (c + 1) * CHUNK);
+            for (int i = c * CHUNK; i < end; ++i) {
+                visitor.accept(items.get(i));
+            }
+        })));
+        replay(effects);
+    }
+
+    /**
+     * Like {@link #forEachInOrder(List, Consumer)}, but items that change the same
+     * thing (as given by group) are visited by the same thread, one after another,
+     * in the order of the items; their effects still happen in the order of all items.
+     * @param group the key (compared by identity) of the group of an item, or null
+     * if the item is in no group
+     */
+    static <T> void forEachInOrder(final List<T> items, final Function<T, ?> group, final Consumer<T> visitor) {
+        final int n = items.size();
+        final int cChunks = (n + CHUNK - 1) / CHUNK;
+        if (cChunks == 0) {
+            return;
+        }
+        /*
+        Each group is a linked list through next; it is visited when its first item
+        comes up, and its other items are skipped where they come up.
+         */
+        final int[] next = new int[n];
+        final boolean[] skip = new boolean[n];
+        final Map<Object, Integer> last = new IdentityHashMap<>();
+        for (int i = 0; i < n; ++i) {
+            next[i] = -1;
+            final Object key = group.apply(items.get(i));
+            if (key != null) {
+                final Integer prev = last.put(key, i);
+                if (prev != null) {
+                    next[prev] = i;
+                    skip[i] = true;
+                }
+            }
+        }
+        @SuppressWarnings("unchecked")
+        final List<Runnable>[] effects = new List[n];
+        ForkJoinPool.commonPool().invoke(new Chunks(cChunks, c -> {
+            final int end = Math.min(n, (c + 1) * CHUNK);
+            for (int i = c * CHUNK; i < end; ++i) {
+                if (!skip[i]) {
+                    for (int j = i; j >= 0; j = next[j]) {
+                        final T item = items.get(j);
+                        effects[j] = collect(() -> visitor.accept(item));
+                    }
+                }
+            }
+        }));
+        replay(effects);
+    }
+
+    private static void replay(final List<Runnable>[] effects) {
+        for (final List<Runnable> chunk : effects) {
+            // into the buffer of whatever this runs within, if anything (see collect)
+            chunk.forEach(Deferred::run);
+        }
+    }
+
+    /**
+     * Runs the given body, holding its effects (see {@link #run}) rather than running
+     * them, and returns them, in order. Can be nested.
+     */
+    static List<Runnable> collect(final Runnable body) {
+        final List<Runnable> effects = new ArrayList<>();
+        final List<Runnable> outer = buffer.get();
+        buffer.set(effects);
+        try {
+            body.run();
+        } finally {
+            buffer.set(outer);
+        }
+        return effects;
+    }
+
+    /*
+    Runs the given chunk (by number) for every chunk, splitting the range in halves.
+     */
+    private static final class Chunks extends RecursiveAction {
+        private final IntConsumer chunk;
+        private final int from;
+        private final int to;
+
+        Chunks(final int cChunks, final IntConsumer chunk) {
+            this(chunk, 0, cChunks);
+        }
+
+        private Chunks(final IntConsumer chunk, final int from, final int to) {
+            this.chunk = chunk;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > 1) {
+                final int mid = (this.from + this.to) >>> 1;
+                invokeAll(
+                    new Chunks(this.chunk, this.from, mid),
+                    new Chunks(this.chunk, mid, this.to));
+                return;
+            }
+            this.chunk.accept(this.from);
+        }
+    }
+}
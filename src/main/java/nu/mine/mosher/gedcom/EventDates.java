@@ -0,0 +1,89 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.collection.TreeNode;
+
+import java.util.*;
+
+/**
+ * Index of the DATEs of the events of one NEW record, by (event tag, date value),
+ * for restoring OLD date ranges ("FROM x TO y") that Ancestry converted into
+ * periods ("BET x AND y").
+ *
+ * Only the first DATE of each event is indexed, and only for events with standard
+ * tags, in record order. When a DATE is changed through {@link #restore}, the index
+ * is updated to match.
+ */
+final class EventDates {
+    enum Result { CONVERTED, CORRECT, NOT_FOUND }
+
+    private static final char SEP = '\u0000';
+
+    private static final class Entry {
+        final int ordinal;
+        final TreeNode<GedcomLine> date;
+
+        Entry(final int ordinal, final TreeNode<GedcomLine> date) {
+            this.ordinal = ordinal;
+            this.date = date;
+        }
+    }
+
+    private final Map<String, List<Entry>> mapKeyToDates = new HashMap<>();
+
+    EventDates(final TreeNode<GedcomLine> top, final RecordViews views) {
+        int ordinal = 0;
+        for (final TreeNode<GedcomLine> event : top) {
+            final GedcomLine line = event.getObject();
+            if (line == null || !line.getTag().name().equals(line.getTagString())) {
+                continue;
+            }
+            final TreeNode<GedcomLine> date = views.of(event).first(GedcomTag.DATE);
+            if (date != null) {
+                this.mapKeyToDates.computeIfAbsent(key(line.getTag(), date.getObject().getValue()), k -> new ArrayList<>(1)).add(new Entry(ordinal++, date));
+            }
+        }
+    }
+
+    /**
+     * Finds the first event with the given tag whose DATE is either the converted
+     * value (which is then changed back to the original value), or already the
+     * original value.
+     * @param tag event tag
+     * @param original the date in OLD
+     * @param converted what Ancestry would have converted the date into
+     * @return what was found
+     */
+    Result restore(final GedcomTag tag, final String original, final String converted) {
+        final List<Entry> want = this.mapKeyToDates.getOrDefault(key(tag, converted), Collections.emptyList());
+        final List<Entry> have = this.mapKeyToDates.getOrDefault(key(tag, original), Collections.emptyList());
+        final Entry firstWant = want.isEmpty() ? null : want.get(0);
+        final Entry firstHave = have.isEmpty() ? null : have.get(0);
+
+        if (firstWant != null && (firstHave == null || firstWant.ordinal < firstHave.ordinal)) {
+            final GedcomLine line = firstWant.date.getObject();
+            Log.debug("    found: {}", firstWant.date);
+            firstWant.date.setObject(new GedcomLine(line.getLevel(), "", line.getTag().name(), original));
+            Log.debug("    chngd: {}", firstWant.date);
+            want.remove(0);
+            insert(this.mapKeyToDates.computeIfAbsent(key(tag, original), k -> new ArrayList<>(1)), firstWant);
+            return Result.CONVERTED;
+        }
+        if (firstHave != null) {
+            // already in correct format; don't change anything
+            return Result.CORRECT;
+        }
+        return Result.NOT_FOUND;
+    }
+
+    private static void insert(final List<Entry> entries, final Entry entry) {
+        int i = 0;
+        while (i < entries.size() && entries.get(i).ordinal < entry.ordinal) {
+            ++i;
+        }
+        entries.add(i, entry);
+    }
+
+    private static String key(final GedcomTag tag, final String date) {
+        return tag.name() + SEP + date;
+    }
+}
@@ -0,0 +1,115 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.collection.TreeNode;
+
+import java.util.*;
+
+/**
+ * Index of the items (events, attributes, etc.) of one NEW record, by signature, so
+ * that finding the items that match an OLD item is a hash lookup rather than a scan
+ * of the record calling {@link GedcomMatcher#itemsMatch} for each item.
+ *
+ * The signature follows itemsMatch exactly: items are grouped by tag (and TYPE, for
+ * EVEN). If the group is unique in the record (see {@link #isUnique}),
+ * then the tag (and TYPE) is enough. Otherwise, the value must match, and then either
+ * the DATE, or (if neither item has a DATE) the first component of PLAC plus the
+ * (first) SOUR pointer.
+ *
+ * Built from the record as it is when first used; items added to the record
+ * afterwards are not seen.
+ */
+final class EventIndex {
+    private static final char SEP = '\u0000';
+
+    private final Set<String> uniqueGroups = new HashSet<>();
+    private final Map<String, List<TreeNode<GedcomLine>>> mapSignatureToItems = new HashMap<>();
+
+    EventIndex(final TreeNode<GedcomLine> top, final RecordViews views) {
+        final Set<String> commonGroups = new HashSet<>();
+        for (final TreeNode<GedcomLine> item : top) {
+            final GedcomLine line = item.getObject();
+            if (line == null) {
+                continue;
+            }
+            final RecordView view = views.of(item);
+            final String type = type(line, view);
+            final String group = group(line, type);
+            if (!this.uniqueGroups.contains(group) && !commonGroups.contains(group)) {
+                if (isUnique(line.getTag(), type, top, views)) {
+                    this.uniqueGroups.add(group);
+                } else {
+                    commonGroups.add(group);
+                }
+            }
+            final String signature = this.uniqueGroups.contains(group) ? group : signature(group, line, view);
+            if (signature != null) {
+                this.mapSignatureToItems.computeIfAbsent(signature, k -> new ArrayList<>(2)).add(item);
+            }
+        }
+    }
+
+    /**
+     * Finds the items of this (NEW) record that match the given item of an OLD record.
+     * @return matching items, in record order (possibly empty)
+     */
+    List<TreeNode<GedcomLine>> matches(final TreeNode<GedcomLine> item, final RecordViews views) {
+        final GedcomLine line = item.getObject();
+        if (line == null) {
+            return Collections.emptyList();
+        }
+        final RecordView view = views.of(item);
+        final String group = group(line, type(line, view));
+        final String signature = this.uniqueGroups.contains(group) ? group : signature(group, line, view);
+        if (signature == null) {
+            return Collections.emptyList();
+        }
+        final List<TreeNode<GedcomLine>> items = this.mapSignatureToItems.get(signature);
+        return items == null ? Collections.emptyList() : Collections.unmodifiableList(items);
+    }
+
+    /**
+     * Checks if the record has at most one item with the given tag, or, for EVEN, at
+     * most one item with the given (lower case) TYPE.
+     */
+    static boolean isUnique(final GedcomTag tag, final String even, final TreeNode<GedcomLine> obj, final RecordViews views) {
+        if (!tag.equals(GedcomTag.EVEN)) {
+            return views.of(obj).count(tag) <= 1;
+        }
+        int cTag = 0;
+        for (final TreeNode<GedcomLine> c : obj) {
+            final String typeNew = views.of(c).value(GedcomTag.TYPE).toLowerCase();
+            if (even.equals(typeNew)) {
+                ++cTag;
+                if (cTag > 1) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static String type(final GedcomLine line, final RecordView view) {
+        return line.getTag().equals(GedcomTag.EVEN) ? view.value(GedcomTag.TYPE).toLowerCase() : "";
+    }
+
+    private static String group(final GedcomLine line, final String type) {
+        return line.getTag().name() + SEP + type;
+    }
+
+    /*
+    Items without a DATE only match on PLAC if they also cite the same source;
+    items with no DATE and no SOUR can never match (null).
+     */
+    private static String signature(final String group, final GedcomLine line, final RecordView view) {
+        final String date = view.value(GedcomTag.DATE);
+        if (!date.isEmpty()) {
+            return group + SEP + line.getValue() + SEP + "D" + SEP + date;
+        }
+        final String source = view.value(GedcomTag.SOUR);
+        if (source.isEmpty()) {
+            return null;
+        }
+        final String place = view.value(GedcomTag.PLAC).split(",")[0].toLowerCase();
+        return group + SEP + line.getValue() + SEP + "P" + SEP + place + SEP + source;
+    }
+}
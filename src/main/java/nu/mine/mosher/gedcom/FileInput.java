@@ -0,0 +1,183 @@
+package nu.mine.mosher.gedcom;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Input from a named file, which can be plain, gzipped (.ged.gz), or zipped (.zip).
+ * The type is detected from the first bytes of the file, not from its name.
+ *
+ * A zip file is read from its (first) .ged entry, or else its first file entry.
+ * Big plain files are memory-mapped and read straight from the mapping (rather
+ * than copied through read calls).
+ */
+final class FileInput {
+    private static final long MAP_THRESHOLD = 1L << 26;
+
+    enum Type { PLAIN, GZIP, ZIP }
+
+    private FileInput() {
+        throw new IllegalStateException();
+    }
+
+    static Type type(final String filename) throws IOException {
+        final byte[] magic = new byte[4];
+        final int n;
+        try (final InputStream in = new FileInputStream(filename)) {
+            n = in.read(magic);
+        }
+        if (n >= 2 && (magic[0] & 0xFF) == 0x1F && (magic[1] & 0xFF) == 0x8B) {
+            return Type.GZIP;
+        }
+        if (n >= 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4) {
+            return Type.ZIP;
+        }
+        return Type.PLAIN;
+    }
+
+    static InputStream open(final String filename) throws IOException {
+        final Type type = type(filename);
+        Log.debug("Reading {} ({}).", filename, type);
+        switch (type) {
+            case GZIP:
+                return new GZIPInputStream(new FileInputStream(filename), 1 << 16);
+            case ZIP:
+                return openZip(filename);
+            default:
+                final File file = new File(filename);
+                if (file.length() > MAP_THRESHOLD && file.length() <= Integer.MAX_VALUE) {
+                    return new ByteBufferInputStream(map(filename));
+                }
+                return new FileInputStream(file);
+        }
+    }
+
+    /**
+     * SHA-256 of the (raw) content of the file.
+     */
+    static byte[] sha256(final String filename) throws IOException {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (final InputStream in = new DigestInputStream(new FileInputStream(filename), digest)) {
+                final byte[] buf = new byte[1 << 16];
+                while (in.read(buf) >= 0) {
+                    // just digesting
+                }
+            }
+            return digest.digest();
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(final byte[] bytes) {
+        final StringBuilder s = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            s.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return s.toString();
+    }
+
+    static ByteBuffer map(final String filename) throws IOException {
+        try (final FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File too big to map: " + filename);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static InputStream openZip(final String filename) throws IOException {
+        final ZipFile zip = new ZipFile(filename);
+        ZipEntry chosen = null;
+        for (final Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
+            final ZipEntry entry = entries.nextElement();
+            if (entry.isDirectory()) {
+                continue;
+            }
+            if (entry.getName().toLowerCase(Locale.ROOT).endsWith(".ged")) {
+                chosen = entry;
+                break;
+            }
+            if (chosen == null) {
+                chosen = entry;
+            }
+        }
+        if (chosen == null) {
+            zip.close();
+            throw new IOException("No GEDCOM file in " + filename);
+        }
+        Log.debug("Reading {} from {}.", chosen.getName(), filename);
+        return new FilterInputStream(zip.getInputStream(chosen)) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    zip.close();
+                }
+            }
+        };
+    }
+
+    static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(final ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return this.buf.hasRemaining() ? this.buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (!this.buf.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, this.buf.remaining());
+            this.buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final int k = (int)Math.max(0L, Math.min(n, this.buf.remaining()));
+            this.buf.position(this.buf.position() + k);
+            return k;
+        }
+
+        @Override
+        public int available() {
+            return this.buf.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(final int readLimit) {
+            this.buf.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            this.buf.reset();
+        }
+    }
+}
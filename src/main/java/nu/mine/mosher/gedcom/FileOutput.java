@@ -0,0 +1,86 @@
+package nu.mine.mosher.gedcom;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Output to a named file, written through a file channel from a large direct buffer
+ * (so each write to the file is big, and needs no copy out of the Java heap), and
+ * optionally gzipped.
+ */
+final class FileOutput {
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private FileOutput() {
+        throw new IllegalStateException();
+    }
+
+    /**
+     * @param gzip true to gzip the output (it is also gzipped if the name ends with .gz)
+     */
+    static OutputStream open(final String filename, final boolean gzip) throws IOException {
+        final FileChannel channel = FileChannel.open(Paths.get(filename),
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        final OutputStream out = new ChannelOutputStream(channel);
+        if (gzip || filename.endsWith(".gz")) {
+            return new GZIPOutputStream(out, 1 << 16);
+        }
+        return out;
+    }
+
+    private static final class ChannelOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        ChannelOutputStream(final FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (!this.buf.hasRemaining()) {
+                drain();
+            }
+            this.buf.put((byte)b);
+        }
+
+        @Override
+        public void write(final byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!this.buf.hasRemaining()) {
+                    drain();
+                }
+                final int n = Math.min(len, this.buf.remaining());
+                this.buf.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                drain();
+            } finally {
+                this.channel.close();
+            }
+        }
+
+        private void drain() throws IOException {
+            this.buf.flip();
+            while (this.buf.hasRemaining()) {
+                this.channel.write(this.buf);
+            }
+            this.buf.clear();
+        }
+    }
+}
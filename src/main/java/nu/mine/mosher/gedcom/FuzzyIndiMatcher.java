@@ -0,0 +1,449 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.collection.TreeNode;
+
+import java.text.Normalizer;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Fuzzy matching of OLD INDIs (that could not be matched exactly) to NEW INDIs.
+ *
+ * NEW INDIs are grouped into blocks by the Soundex code of their surname plus their
+ * birth decade, so each OLD INDI is only compared with the NEW INDIs in its own (and
+ * the adjacent) decade blocks, never with all of them. Within a block, candidates are
+ * scored by given names, birth and death years, birth place, and parents' names.
+ * A match is accepted only if it scores at least {@link #MIN_SCORE} and beats the
+ * next best candidate by at least {@link #MIN_MARGIN}. Each NEW INDI is matched at
+ * most once (higher scores win).
+ */
+final class FuzzyIndiMatcher {
+    static final int MIN_SCORE = 6;
+    static final int MIN_MARGIN = 2;
+
+    private static final String NO_DECADE = "?";
+
+    static final class Match {
+        final String oldId;
+        final String title;
+        final String newId;
+        final int score;
+        final boolean ambiguous;
+
+        private Match(final String oldId, final String title, final String newId, final int score, final boolean ambiguous) {
+            this.oldId = oldId;
+            this.title = title;
+            this.newId = newId;
+            this.score = score;
+            this.ambiguous = ambiguous;
+        }
+    }
+
+    private static final class Person {
+        final String id;
+        final String title;
+        final String surname;
+        final List<String> givens;
+        final int birth;
+        final String birthPlace;
+        final int death;
+        final String famc;
+
+        Person(final String id, final String title, final String surname, final List<String> givens, final int birth, final String birthPlace, final int death, final String famc) {
+            this.id = id;
+            this.title = title;
+            this.surname = surname;
+            this.givens = givens;
+            this.birth = birth;
+            this.birthPlace = birthPlace;
+            this.death = death;
+            this.famc = famc;
+        }
+    }
+
+    /*
+    Just enough of one tree to find a person's parents' names: normalized
+    names of all INDIs, and HUSB/WIFE of all FAMs.
+     */
+    private static final class Family {
+        final Map<String, String> names = new HashMap<>();
+        final Map<String, String[]> parents = new HashMap<>();
+
+        String father(final Person p) {
+            return parent(p, 0);
+        }
+
+        String mother(final Person p) {
+            return parent(p, 1);
+        }
+
+        private String parent(final Person p, final int i) {
+            final String[] hw = this.parents.get(p.famc);
+            if (hw == null || hw[i].isEmpty()) {
+                return "";
+            }
+            return this.names.getOrDefault(hw[i], "");
+        }
+    }
+
+    private final RecordViews views;
+    private final YearResolver years;
+    private final Function<TreeNode<GedcomLine>, String> birthYears;
+    private final Map<String, List<Person>> blocks = new HashMap<>();
+    private final Set<String> claimed = new HashSet<>();
+    private final List<Person> unmatched = new ArrayList<>();
+    private final Family familyNew = new Family();
+    private final Family familyOld = new Family();
+
+    /**
+     * @param birthYears gets the birth year of an INDI (as used for exact matching)
+     */
+    FuzzyIndiMatcher(final RecordViews views, final YearResolver years, final Function<TreeNode<GedcomLine>, String> birthYears) {
+        this.views = views;
+        this.years = years;
+        this.birthYears = birthYears;
+    }
+
+    /**
+     * Makes a NEW INDI a candidate for fuzzy matching.
+     */
+    void addCandidate(final TreeNode<GedcomLine> indi) {
+        final Person p = person(indi);
+        this.blocks.computeIfAbsent(blockKey(p.surname, p.birth), k -> new ArrayList<>(4)).add(p);
+    }
+
+    /**
+     * Removes a NEW INDI from consideration, because it was matched exactly.
+     */
+    void claim(final String newId) {
+        this.claimed.add(newId);
+    }
+
+    /**
+     * Queues an OLD INDI that could not be matched exactly.
+     */
+    void addUnmatched(final TreeNode<GedcomLine> indi) {
+        this.unmatched.add(person(indi));
+    }
+
+    void addNewName(final TreeNode<GedcomLine> indi) {
+        addName(this.familyNew, indi);
+    }
+
+    void addOldName(final TreeNode<GedcomLine> indi) {
+        addName(this.familyOld, indi);
+    }
+
+    void addNewFamily(final TreeNode<GedcomLine> fam) {
+        addFamily(this.familyNew, fam);
+    }
+
+    void addOldFamily(final TreeNode<GedcomLine> fam) {
+        addFamily(this.familyOld, fam);
+    }
+
+    /**
+     * Matches all the queued OLD INDIs.
+     * @return one result for each queued OLD INDI, in the order they were queued
+     * (with a null newId if there was no acceptable match)
+     */
+    List<Match> match() {
+        final Person[] best = new Person[this.unmatched.size()];
+        final int[] score = new int[best.length];
+        final boolean[] ambiguous = new boolean[best.length];
+        final List<Integer> accepted = new ArrayList<>();
+
+        for (int i = 0; i < best.length; ++i) {
+            final Person old = this.unmatched.get(i);
+            int second = Integer.MIN_VALUE;
+            score[i] = Integer.MIN_VALUE;
+            for (final String key : candidateBlocks(old)) {
+                for (final Person cand : this.blocks.getOrDefault(key, Collections.emptyList())) {
+                    if (this.claimed.contains(cand.id)) {
+                        continue;
+                    }
+                    final int s = score(old, cand);
+                    Log.trace("    fuzzy candidate: {}", cand.title);
+                    if (s > score[i]) {
+                        second = score[i];
+                        score[i] = s;
+                        best[i] = cand;
+                    } else if (s > second) {
+                        second = s;
+                    }
+                }
+            }
+            if (best[i] != null && score[i] >= MIN_SCORE) {
+                if (second == Integer.MIN_VALUE || score[i] - second >= MIN_MARGIN) {
+                    accepted.add(i);
+                } else {
+                    ambiguous[i] = true;
+                }
+            }
+        }
+
+        // one OLD per NEW: highest score wins (ties go to the earlier OLD)
+        accepted.sort((a, b) -> Integer.compare(score[b], score[a]));
+        final Set<String> taken = new HashSet<>();
+        final String[] matched = new String[best.length];
+        for (final int i : accepted) {
+            if (taken.add(best[i].id)) {
+                matched[i] = best[i].id;
+            }
+        }
+
+        final List<Match> results = new ArrayList<>(best.length);
+        for (int i = 0; i < best.length; ++i) {
+            final Person old = this.unmatched.get(i);
+            results.add(new Match(old.id, old.title, matched[i], matched[i] == null ? 0 : score[i], ambiguous[i]));
+        }
+        return results;
+    }
+
+    private List<String> candidateBlocks(final Person old) {
+        final String code = soundex(old.surname);
+        if (old.birth < 0) {
+            return Collections.singletonList(code + "|" + NO_DECADE);
+        }
+        final int decade = old.birth / 10;
+        return Arrays.asList(
+            code + "|" + (decade - 1),
+            code + "|" + decade,
+            code + "|" + (decade + 1),
+            code + "|" + NO_DECADE);
+    }
+
+    private int score(final Person old, final Person cand) {
+        int s = 0;
+
+        if (!old.givens.isEmpty() && !cand.givens.isEmpty()) {
+            final String a = old.givens.get(0);
+            final String b = cand.givens.get(0);
+            if (a.equals(b)) {
+                s += 3;
+            } else if (a.startsWith(b) || b.startsWith(a)) {
+                // initials, or abbreviations
+                s += 1;
+            } else {
+                s -= 3;
+            }
+            for (int i = 1; i < old.givens.size(); ++i) {
+                if (cand.givens.contains(old.givens.get(i))) {
+                    s += 1;
+                }
+            }
+        }
+
+        if (old.surname.equals(cand.surname)) {
+            s += 1;
+        }
+
+        s += yearScore(old.birth, cand.birth, 3, 2);
+        s += yearScore(old.death, cand.death, 2, 1);
+
+        if (!old.birthPlace.isEmpty() && !cand.birthPlace.isEmpty()) {
+            if (old.birthPlace.equals(cand.birthPlace)) {
+                s += 2;
+            } else if (firstPart(old.birthPlace).equals(firstPart(cand.birthPlace))) {
+                s += 1;
+            }
+        }
+
+        s += parentScore(this.familyOld.father(old), this.familyNew.father(cand));
+        s += parentScore(this.familyOld.mother(old), this.familyNew.mother(cand));
+
+        return s;
+    }
+
+    private static int yearScore(final int a, final int b, final int exact, final int near) {
+        if (a < 0 || b < 0) {
+            return 0;
+        }
+        final int diff = Math.abs(a - b);
+        if (diff == 0) {
+            return exact;
+        }
+        return diff <= near ? 1 : -2;
+    }
+
+    private static int parentScore(final String a, final String b) {
+        if (a.isEmpty() || b.isEmpty()) {
+            return 0;
+        }
+        return a.equals(b) ? 2 : -1;
+    }
+
+    private static String firstPart(final String place) {
+        final int i = place.indexOf(',');
+        return i < 0 ? place : place.substring(0, i);
+    }
+
+    private Person person(final TreeNode<GedcomLine> indi) {
+        final RecordView view = this.views.of(indi);
+        final String name = view.value(GedcomTag.NAME);
+        final String birthYear = this.birthYears.apply(indi);
+        return new Person(
+            indi.getObject().getID(),
+            name + "|" + birthYear,
+            normalize(surname(name)),
+            tokens(givenNames(name)),
+            toYear(birthYear),
+            birthPlace(view),
+            eventYear(view, GedcomTag.DEAT),
+            view.value(GedcomTag.FAMC));
+    }
+
+    private int eventYear(final RecordView view, final GedcomTag tag) {
+        for (final TreeNode<GedcomLine> event : view.children(tag)) {
+            final String date = this.views.of(event).value(GedcomTag.DATE);
+            if (!date.isEmpty()) {
+                return toYear(this.years.year(date));
+            }
+        }
+        return -1;
+    }
+
+    private String birthPlace(final RecordView view) {
+        for (final TreeNode<GedcomLine> event : view.children(GedcomTag.BIRT)) {
+            final String place = this.views.of(event).value(GedcomTag.PLAC);
+            if (!place.isEmpty()) {
+                return normalizePlace(place);
+            }
+        }
+        return "";
+    }
+
+    // normalize each part, but keep the commas
+    private static String normalizePlace(final String place) {
+        final StringBuilder sb = new StringBuilder(place.length());
+        for (final String part : place.split(",", -1)) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(normalize(part));
+        }
+        return sb.toString();
+    }
+
+    private void addName(final Family family, final TreeNode<GedcomLine> indi) {
+        final String name = this.views.of(indi).value(GedcomTag.NAME);
+        if (!name.isEmpty()) {
+            family.names.put(indi.getObject().getID(), normalize(name.replace('/', ' ')));
+        }
+    }
+
+    private void addFamily(final Family family, final TreeNode<GedcomLine> fam) {
+        final RecordView view = this.views.of(fam);
+        family.parents.put(fam.getObject().getID(), new String[] { view.value(GedcomTag.HUSB), view.value(GedcomTag.WIFE) });
+    }
+
+    private static String blockKey(final String surname, final int birth) {
+        return soundex(surname) + "|" + (birth < 0 ? NO_DECADE : Integer.toString(birth / 10));
+    }
+
+    private static int toYear(final String year) {
+        return year.isEmpty() ? -1 : Integer.parseInt(year);
+    }
+
+    /*
+    GEDCOM names are "Given Names /Surname/ Suffix". Without slashes, we take
+    the last word as the surname.
+     */
+    static String surname(final String name) {
+        final int a = name.indexOf('/');
+        if (a >= 0) {
+            final int b = name.indexOf('/', a + 1);
+            return b < 0 ? name.substring(a + 1) : name.substring(a + 1, b);
+        }
+        final String s = name.trim();
+        final int sp = s.lastIndexOf(' ');
+        return sp < 0 ? s : s.substring(sp + 1);
+    }
+
+    static String givenNames(final String name) {
+        final int a = name.indexOf('/');
+        if (a >= 0) {
+            return name.substring(0, a);
+        }
+        final String s = name.trim();
+        final int sp = s.lastIndexOf(' ');
+        return sp < 0 ? "" : s.substring(0, sp);
+    }
+
+    private static List<String> tokens(final String s) {
+        final String n = normalize(s);
+        return n.isEmpty() ? Collections.emptyList() : Arrays.asList(n.split(" "));
+    }
+
+    /*
+    Upper case, without accents or punctuation, and with single spaces.
+     */
+    static String normalize(final String s) {
+        final String d = Normalizer.normalize(s, Normalizer.Form.NFD);
+        final StringBuilder sb = new StringBuilder(d.length());
+        boolean space = false;
+        for (int i = 0; i < d.length(); ++i) {
+            final char c = d.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                if (space && sb.length() > 0) {
+                    sb.append(' ');
+                }
+                space = false;
+                sb.append(Character.toUpperCase(c));
+            } else {
+                space = true;
+            }
+        }
+        return sb.toString();
+    }
+
+    /*
+    American Soundex: first letter, then up to three digits for the
+    following consonant sounds. (H and W don't separate equal codes.)
+     */
+    static String soundex(final String surname) {
+        final String s = normalize(surname).replace(" ", "");
+        if (s.isEmpty()) {
+            return "";
+        }
+        final StringBuilder sb = new StringBuilder(4);
+        sb.append(s.charAt(0));
+        char prev = soundexDigit(s.charAt(0));
+        for (int i = 1; i < s.length() && sb.length() < 4; ++i) {
+            final char c = s.charAt(i);
+            final char digit = soundexDigit(c);
+            if (digit != '0' && digit != prev) {
+                sb.append(digit);
+            }
+            if (c != 'H' && c != 'W') {
+                prev = digit;
+            }
+        }
+        while (sb.length() < 4) {
+            sb.append('0');
+        }
+        return sb.toString();
+    }
+
+    private static char soundexDigit(final char c) {
+        switch (c) {
+            case 'B': case 'F': case 'P': case 'V':
+                return '1';
+            case 'C': case 'G': case 'J': case 'K': case 'Q': case 'S': case 'X': case 'Z':
+                return '2';
+            case 'D': case 'T':
+                return '3';
+            case 'L':
+                return '4';
+            case 'M': case 'N':
+                return '5';
+            case 'R':
+                return '6';
+            default:
+                return '0';
+        }
+    }
+}
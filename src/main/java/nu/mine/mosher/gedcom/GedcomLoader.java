@@ -0,0 +1,159 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.collection.TreeNode;
+import nu.mine.mosher.gedcom.exception.InvalidLevel;
+import nu.mine.mosher.gedcom.model.Loader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Loads GEDCOM files into {@link Loader} models. Each file goes through four
+ * stages: read (into a tree), concatenate (CONC/CONT), share (repeated values,
+ * see {@link StringPool}), and parse (into the model).
+ * When loading concurrently, each file runs its stages as a pipeline on its own
+ * worker, so reading one file overlaps with concatenating or parsing the other.
+ */
+final class GedcomLoader {
+    private GedcomLoader() {
+        throw new IllegalStateException();
+    }
+
+    static Loader load(final String filename) throws IOException, InvalidLevel {
+        final GedcomTree gt = read(filename);
+        concatenate(gt);
+        final StringPool pool = new StringPool();
+        share(gt, filename, pool);
+        final Loader loader = parse(gt, filename);
+        reportHeap(pool.bytesSaved());
+        return loader;
+    }
+
+    /**
+     * Loads all the given files, returning the models in the same order as the file names.
+     * @param concurrent true to load the files at the same time; false to load them one after another
+     */
+    static List<Loader> loadAll(final boolean concurrent, final List<String> filenames) throws IOException, InvalidLevel {
+        final List<Loader> loaders = new ArrayList<>(filenames.size());
+        if (!concurrent || filenames.size() < 2) {
+            for (final String filename : filenames) {
+                loaders.add(load(filename));
+            }
+            return loaders;
+        }
+
+        final List<StringPool> pools = new ArrayList<>(filenames.size());
+
+        final ExecutorService pool = Executors.newFixedThreadPool(filenames.size(), r -> {
+            final Thread t = new Thread(r, "gedcom-loader");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            final List<CompletableFuture<Loader>> pending = new ArrayList<>(filenames.size());
+            for (final String filename : filenames) {
+                final StringPool strings = new StringPool();
+                pools.add(strings);
+                pending.add(CompletableFuture
+                    .supplyAsync(() -> readUnchecked(filename), pool)
+                    .thenApplyAsync(GedcomLoader::concatenate, pool)
+                    .thenApplyAsync(gt -> share(gt, filename, strings), pool)
+                    .thenApplyAsync(gt -> parse(gt, filename), pool));
+            }
+            for (final CompletableFuture<Loader> loader : pending) {
+                loaders.add(join(loader));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        reportHeap(pools.stream().mapToLong(StringPool::bytesSaved).sum());
+        return loaders;
+    }
+
+    /*
+    The file can be plain, gzipped, or zipped (see FileInput).
+     */
+    private static GedcomTree read(final String filename) throws IOException, InvalidLevel {
+        try (final BufferedInputStream in = new BufferedInputStream(FileInput.open(filename), 1 << 16)) {
+            return Gedcom.readFile(in);
+        }
+    }
+
+    private static GedcomTree readUnchecked(final String filename) {
+        try {
+            return read(filename);
+        } catch (final IOException | InvalidLevel e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static GedcomTree concatenate(final GedcomTree gt) {
+        new GedcomConcatenator(gt).concatenate();
+        gt.setCharset(StandardCharsets.UTF_8);
+        return gt;
+    }
+
+    /*
+    Replaces each repeated value with the one pooled copy of it (before parsing, so
+    the model shares them too). Lines with IDs or pointers are left alone.
+     */
+    private static GedcomTree share(final GedcomTree gt, final String filename, final StringPool pool) {
+        final Deque<TreeNode<GedcomLine>> stack = new ArrayDeque<>();
+        stack.push(gt.getRoot());
+        while (!stack.isEmpty()) {
+            final TreeNode<GedcomLine> node = stack.pop();
+            final GedcomLine line = node.getObject();
+            if (line != null && !line.hasID() && !line.isPointer()) {
+                final String value = line.getValue();
+                final String shared = pool.share(value);
+                if (shared != value) {
+                    node.setObject(line.replaceValue(shared));
+                }
+            }
+            for (final TreeNode<GedcomLine> child : node) {
+                stack.push(child);
+            }
+        }
+        Log.info("Loaded {}: {}.", filename, pool);
+        return gt;
+    }
+
+    /*
+    Measuring the heap means a full garbage collection, so only when debugging.
+     */
+    private static void reportHeap(final long bytesSaved) {
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            final long mb = StringPool.heapInUse();
+            Log.debug("Heap in use after loading: {} MB (about {} MB without sharing).", mb, mb + (bytesSaved >> 20));
+        }
+    }
+
+    private static Loader parse(final GedcomTree gt, final String filename) {
+        final Loader loader = new Loader(gt, filename);
+        loader.parse();
+        return loader;
+    }
+
+    private static Loader join(final CompletableFuture<Loader> loader) throws IOException, InvalidLevel {
+        try {
+            return loader.join();
+        } catch (final CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof InvalidLevel) {
+                throw (InvalidLevel)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -1,18 +1,15 @@
 package nu.mine.mosher.gedcom;
 
 import nu.mine.mosher.collection.TreeNode;
-import nu.mine.mosher.gedcom.date.DatePeriod;
-import nu.mine.mosher.gedcom.date.DateRange;
-import nu.mine.mosher.gedcom.date.parser.GedcomDateValueParser;
-import nu.mine.mosher.gedcom.date.parser.ParseException;
 import nu.mine.mosher.gedcom.exception.InvalidLevel;
 import nu.mine.mosher.gedcom.model.Loader;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Matches two GEDCOM files: OLD (e.g., previous version of my local GEDCOM file), and NEW
@@ -23,42 +20,241 @@ import java.util.regex.Pattern;
  * file and updates the original file (i.e., only make _APID changes).
  */
 class GedcomMatcher {
+    private static final List<String> OPTIONS = Arrays.asList(
+        "sequential", "sequential-load", "sequential-phases", "stream", "fuzzy", "no-index", "incremental",
+        "output", "gzip", "fused-write", "metrics", "log", "report",
+        "batch", "threads", "out", "patch", "apply", "index", "serve", "cache");
+
     public static void main(final String... args) throws InvalidLevel, IOException {
-        if (args.length < 2) {
-            throw new IllegalArgumentException("\n\nusage:\n    gedcom-matcher old.ged new.ged >out.ged");
+        final Options options = Options.parse(OPTIONS, args);
+        if (options.positional().size() < (options.has("serve") ? 0 : options.has("index") || options.has("apply") ? 1 : 2)) {
+            throw new IllegalArgumentException("\n\nusage:\n    gedcom-matcher [--sequential|--sequential-load|--sequential-phases|--stream] [--fuzzy] [--no-index] [--incremental[=state]] [--output=out.ged[.gz]] [--gzip] [--fused-write] [--metrics[=metrics.json]] [--log=error|warn|info|debug|trace] [--report=report.jsonl] old.ged new.ged >out.ged"+
+                "\n    gedcom-matcher --batch [--threads=n] [--out=dir] [--sequential-phases|--stream] [--fused-write] [--fuzzy] [--no-index] [--incremental] [--metrics[=...]] [--log=...] [--report=...] old.ged new.ged..."+
+                "\n    gedcom-matcher --patch[=new.ged.gpatch[.gz]] [--fuzzy] [--no-index] [--incremental[=state]] [--metrics[=...]] [--log=...] [--report=...] old.ged new.ged"+
+                "\n    gedcom-matcher --apply=new.ged.gpatch[.gz] [--output=out.ged[.gz]] [--gzip] [--log=...] new.ged >out.ged"+
+                "\n    gedcom-matcher --index old.ged"+
+                "\n    gedcom-matcher --serve[=port] [--threads=n] [--cache=n] [--fused-write] [--fuzzy] [--log=...] [--report=...]"+
+                "\n\n    --sequential-load: load OLD, then NEW (instead of both at the same time)"+
+                "\n    --sequential-phases: match and restore one phase after another, on one thread (instead of in parallel)"+
+                "\n    --sequential: both");
+        }
+        Log.setLevel(options.get("log", "info"));
+        if (options.has("report")) {
+            Log.openReport(options.get("report", "report.jsonl"));
+        }
+        try {
+            // the service always has metrics (see MergeService)
+            final Metrics metrics = options.has("metrics") || options.has("serve") ? new Metrics() : Metrics.NONE;
+            run(options, metrics);
+            if (options.has("metrics")) {
+                saveMetrics(metrics, options.get("metrics", ""));
+            }
+        } finally {
+            Log.closeReport();
         }
+    }
 
-        final Loader oldLoad = loadGedcom(args[0]);
-        final Loader newLoad = loadGedcom(args[1]);
+    /*
+    The JSON summary goes to the given file, or (if none) to stderr.
+     */
+    private static void saveMetrics(final Metrics metrics, final String filename) throws IOException {
+        final String json = metrics.toJson();
+        if (filename.isEmpty()) {
+            System.err.println(json);
+            System.err.flush();
+            return;
+        }
+        try (final Writer out = new OutputStreamWriter(new FileOutputStream(filename), java.nio.charset.StandardCharsets.UTF_8)) {
+            out.write(json);
+            out.write('\n');
+        }
+    }
 
-        matchAndUpdate(oldLoad, newLoad);
+    private static void run(final Options options, final Metrics metrics) throws InvalidLevel, IOException {
+        if (options.has("index")) {
+            OldIndex.build(options.positional().get(0));
+            return;
+        }
+        if (options.has("batch")) {
+            BatchRunner.run(options, metrics);
+            return;
+        }
+        if (options.has("serve")) {
+            MergeService.run(options, metrics);
+            return;
+        }
+        if (options.has("apply")) {
+            try (final GedcomRecordWriter out = new GedcomRecordWriter(output(options), 60)) {
+                GedcomPatch.apply(options.get("apply", ""), options.positional().get(0), out);
+            }
+            return;
+        }
+        if (options.has("patch") && options.has("stream")) {
+            throw new IllegalArgumentException("--patch needs all of NEW in memory, so cannot be used with --stream.");
+        }
+        if (options.has("patch")) {
+            GedcomPatch.checkCharset(options.positional().get(1));
+        }
 
-        saveGedcom(newLoad);
+        final GedcomMatcher matcher = new GedcomMatcher(options.has("fuzzy"), null, new YearResolver());
+        final OldIndex oldIndex = openIndex(options);
+        final MatchState state = options.has("incremental")
+            ? MatchState.load(new File(options.get("incremental", options.positional().get(0) + ".state")), options.positional().get(0), options.has("fuzzy"))
+            : null;
+        matcher.incremental(state);
+        matcher.metrics(metrics);
+        matcher.parallelPhases(!sequentialPhases(options));
+        matcher.patching(options.has("patch"));
+
+        if (options.has("stream")) {
+            try (final GedcomRecordWriter out = new GedcomRecordWriter(output(options), 60)) {
+                if (oldIndex != null) {
+                    matcher.streamAndUpdate(oldIndex, options.positional().get(1), out);
+                } else {
+                    matcher.streamAndUpdate(GedcomLoader.load(options.positional().get(0)), options.positional().get(1), out);
+                }
+            }
+            saveState(state);
+            System.err.flush();
+            return;
+        }
+
+        if (oldIndex != null) {
+            final Loader newLoad = GedcomLoader.load(options.positional().get(1));
+            matcher.matchAndUpdate(oldIndex, newLoad);
+            save(matcher, newLoad, options);
+            saveState(state);
+            System.err.flush();
+            System.out.flush();
+            return;
+        }
+
+        // OLD and NEW are independent until matching, so load them both at once (unless told not to)
+        final List<Loader> loads = GedcomLoader.loadAll(!options.has("sequential") && !options.has("sequential-load"), options.positional().subList(0, 2));
+        final Loader oldLoad = loads.get(0);
+        final Loader newLoad = loads.get(1);
+
+        matcher.matchAndUpdate(oldLoad, newLoad);
+
+        save(matcher, newLoad, options);
+        saveState(state);
         System.err.flush();
         System.out.flush();
     }
 
-    private static Loader loadGedcom(final String filename) throws IOException, InvalidLevel {
-        final File in = new File(filename);
-        final GedcomTree gt = Gedcom.readFile(new BufferedInputStream(new FileInputStream(in)));
-        new GedcomConcatenator(gt).concatenate();
-        gt.setCharset(StandardCharsets.UTF_8);
-        final Loader loader = new Loader(gt, filename);
-        loader.parse();
-        return loader;
+    /*
+    --sequential is both --sequential-load and --sequential-phases.
+     */
+    static boolean sequentialPhases(final Options options) {
+        return options.has("sequential") || options.has("sequential-phases");
     }
 
-    private static void saveGedcom(final Loader load) throws IOException {
-        final GedcomTree gt = load.getGedcom();
-        gt.setMaxLength(60);
-        new GedcomUnconcatenator(gt).unconcatenate();
-        final BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out));
-        Gedcom.writeFile(gt, out);
-        out.flush();
-        out.close();
+    /*
+    The saved index of OLD, if there is one and it is up to date (and can be used).
+     */
+    static OldIndex openIndex(final Options options) throws IOException {
+        if (options.has("no-index")) {
+            return null;
+        }
+        final String oldFilename = options.positional().get(0);
+        if (FileInput.type(oldFilename) != FileInput.Type.PLAIN) {
+            return null;
+        }
+        if (options.has("fuzzy")) {
+            if (OldIndex.indexFile(oldFilename).isFile()) {
+                Log.info("Index of {} is not used for fuzzy matching.", oldFilename);
+            }
+            return null;
+        }
+        return OldIndex.open(oldFilename);
+    }
+
+    /*
+    Only saved once the output has been written, so a failed run never leaves
+    decisions behind for the next one.
+     */
+    static void saveState(final MatchState state) throws IOException {
+        if (state != null) {
+            Log.info("Incremental: {}.", state);
+            state.save();
+        }
     }
 
-    private static void matchAndUpdate(final Loader oldLoad, final Loader newLoad) {
+    /*
+    Standard output, or the --output file; gzipped if asked for.
+     */
+    private static OutputStream output(final Options options) throws IOException {
+        if (options.has("output")) {
+            return FileOutput.open(options.get("output", "out.ged"), options.has("gzip"));
+        }
+        return options.has("gzip") ? new GZIPOutputStream(System.out, 1 << 16) : System.out;
+    }
+
+    /*
+    The merged file, or (with --patch) only what changed (see GedcomPatch).
+     */
+    private static void save(final GedcomMatcher matcher, final Loader newLoad, final Options options) throws IOException {
+        if (options.has("patch")) {
+            final String newFilename = options.positional().get(1);
+            GedcomPatch.write(newFilename, newLoad.getGedcom().getRoot(), matcher.queued(), matcher.remappedIds(), options.get("patch", newFilename + ".gpatch"));
+            return;
+        }
+        saveGedcom(newLoad, options);
+    }
+
+    private static void saveGedcom(final Loader load, final Options options) throws IOException {
+        try (final OutputStream out = output(options)) {
+            saveGedcom(load.getGedcom(), out, options.has("fused-write"));
+        }
+    }
+
+    /**
+     * Writes the tree, the same way wherever it goes. By default, gedcom-lib writes it
+     * (after unconcatenating the whole tree). With fused, GedcomRecordWriter writes it,
+     * as streaming and --apply do: it splits long values into CONC/CONT lines as it
+     * writes them (so the tree is not unconcatenated first), and always writes UTF-8
+     * (see {@link #declareUtf8}).
+     * @param out flushed, but not closed
+     */
+    static void saveGedcom(final GedcomTree tree, final OutputStream out, final boolean fused) throws IOException {
+        if (fused) {
+            declareUtf8(findHead(tree.getRoot()));
+            final GedcomRecordWriter writer = new GedcomRecordWriter(out, 60);
+            writer.write(tree.getRoot());
+            writer.flush();
+            return;
+        }
+        tree.setMaxLength(60);
+        new GedcomUnconcatenator(tree).unconcatenate();
+        final BufferedOutputStream buffered = new BufferedOutputStream(out, 1 << 16);
+        Gedcom.writeFile(tree, buffered);
+        buffered.flush();
+    }
+
+    void matchAndUpdate(final Loader oldLoad, final Loader newLoad) {
+        matchAndUpdate(oldLoad.getGedcom(), newLoad.getGedcom());
+    }
+
+    /**
+     * Matches NEW to OLD, and updates NEW (in place). OLD is only read.
+     */
+    void matchAndUpdate(final GedcomTree oldTree, final GedcomTree newTree) {
+        matchAndUpdate(RecordLookup.of(oldTree), null, newTree);
+    }
+
+    /*
+    Uses the persisted index of OLD instead of OLD itself (see OldIndex).
+     */
+    void matchAndUpdate(final OldIndex oldIndex, final Loader newLoad) {
+        matchAndUpdate(oldIndex, oldIndex.keys(), newLoad.getGedcom());
+    }
+
+    /*
+    OLD is matched either by running the matchOld pass over it (if oldKeys is null),
+    or from its match keys, as saved in an index (or as found once for a batch, see
+    oldMatchKeys).
+     */
+    void matchAndUpdate(final RecordLookup oldRecords, final List<OldIndex.Key> oldKeys, final GedcomTree newTree) {
         /* TODO: new algorithm:
         1. restore IDs (already have other program for this)
         2. match on .INDI.*.SOUR
@@ -66,390 +262,881 @@ class GedcomMatcher {
         4. report error for unmatched NEW _APID
         5. write OLD file
          */
-        repo(oldLoad, newLoad);
-        sour(oldLoad, newLoad);
-        indi(oldLoad, newLoad);
-        obje(oldLoad, newLoad);
+        final TreeNode<GedcomLine> oldRoot = oldRecords.getRoot();
+        final RecordLookup newRecords = RecordLookup.of(newTree);
+        final TreeNode<GedcomLine> newRoot = newRecords.getRoot();
 
-        if (setTitleDuplicates.size() > 0) {
-            System.err.println("------------------------------------------------------------");
-            System.err.println("WARNING: Duplicates found:");
-            System.err.println(setTitleDuplicates);
+        /*
+        Each phase registers visitors (by record tag) on the passes it needs.
+        Matching needs all of NEW indexed before any of OLD is checked. Run in
+        parallel, each phase indexes NEW in its own pass (into its own index), so the
+        phases can index at the same time; otherwise, all phases index NEW in one
+        pass. OLD is matched in one pass, because all phases record their matches
+        in the same maps.
+         */
+        final Map<String, RecordPass> indexNew = new LinkedHashMap<>();
+        final RecordPass indexNewAll = new RecordPass();
+        final RecordPass matchOld = new RecordPass();
+        if (parallelPhases) {
+            matchers(phase -> indexNew.computeIfAbsent(phase, k -> new RecordPass()), matchOld);
+        } else {
+            matchers(indexNewAll, matchOld);
+        }
+        final List<String> exportedIds = new ArrayList<>();
+        for (final TreeNode<GedcomLine> top : newRoot) {
+            exportedIds.add(top.getObject().hasID() ? top.getObject().getID() : null);
+            replayDecision(top);
+        }
+        if (parallelPhases) {
+            indexScheduled(indexNew, newRoot);
+        } else {
+            indexNewAll.run(newRoot);
+        }
+        matchOld(matchOld, oldRoot, oldKeys);
+        reportDuplicates();
+
+        final int cRemapped = remapIds(newRoot);
+        Log.info("Remapped IDs: {} lines rewritten.", cRemapped);
+        final Iterator<String> iExportedId = exportedIds.iterator();
+        for (final TreeNode<GedcomLine> top : newRoot) {
+            saveDecision(iExportedId.next(), top);
         }
 
-        remapIds(newLoad.getGedcom().getRoot());
+        metrics.phase("root").timed(() -> root(findHead(oldRoot), findHead(newRoot))).run();
 
-        root(oldLoad, newLoad);
+        if (parallelPhases) {
+            restoreScheduled(oldRecords, newRecords);
+        } else {
+            restorers(oldRecords, newRecords).run(oldRoot);
+        }
 
-        date(oldLoad, newLoad);
+        if (!patching) {
+            addNewNodes();
+        }
+    }
 
-        note(oldLoad, newLoad);
-        quay(oldLoad, newLoad);
-//        sourApid(oldLoad, newLoad);
-        mergeObjes(oldLoad, newLoad);
-        xy(oldLoad, newLoad);
+    /*
+    Streaming version of matchAndUpdate. NEW is read twice, one top-level record
+    at a time (once to index it, and once to update and write it), so it is never
+    held in memory as a whole. Only OLD is loaded.
+     */
+    void streamAndUpdate(final Loader oldLoad, final String newFilename, final GedcomRecordWriter out) throws IOException {
+        streamAndUpdate(RecordLookup.of(oldLoad.getGedcom()), null, newFilename, out);
+    }
+
+    void streamAndUpdate(final OldIndex oldIndex, final String newFilename, final GedcomRecordWriter out) throws IOException {
+        streamAndUpdate(oldIndex, oldIndex.keys(), newFilename, out);
+    }
+
+    void streamAndUpdate(final RecordLookup oldRecords, final List<OldIndex.Key> oldKeys, final String newFilename, final GedcomRecordWriter out) throws IOException {
+        final TreeNode<GedcomLine> oldRoot = oldRecords.getRoot();
+
+        final RecordPass indexNew = new RecordPass();
+        final RecordPass matchOld = new RecordPass();
+        matchers(indexNew, matchOld);
+        try (final GedcomRecordReader in = new GedcomRecordReader(FileInput.open(newFilename))) {
+            for (TreeNode<GedcomLine> top = in.next(); top != null; top = in.next()) {
+                replayDecision(top);
+                indexNew.visit(top);
+                // don't let the cache hold on to NEW records
+                views.clear();
+            }
+        }
+        indexNew.finish();
+        matchOld(matchOld, oldRoot, oldKeys);
+        reportDuplicates();
+
+        /*
+        Each NEW record is restored from all of its OLD records together (there are
+        more than one if OLD has duplicates), as matchAndUpdate restores them. New
+        top-level records are kept by the OLD record they are added for, so that they
+        can be written in OLD's order, after all of NEW (trailer included), just where
+        matchAndUpdate adds them.
+         */
+        final Map<String, List<TreeNode<GedcomLine>>> mapExportedToOld = new HashMap<>();
+        final Map<TreeNode<GedcomLine>, Integer> ordinals = new IdentityHashMap<>();
+        for (final TreeNode<GedcomLine> oldTop : oldRoot) {
+            ordinals.put(oldTop, ordinals.size());
+            final String exportedId = counterpartId(oldTop);
+            if (exportedId != null) {
+                mapExportedToOld.computeIfAbsent(exportedId, k -> new ArrayList<>(1)).add(oldTop);
+            }
+        }
 
+        final TreeNode<GedcomLine> headOld = findHead(oldRoot);
+        final StreamedRecords newRecords = new StreamedRecords();
+        final Consumer<TreeNode<GedcomLine>> restoring = oldTop -> newRecords.restoring(ordinals.get(oldTop));
+        final RecordPass restore = restorers(oldRecords, newRecords);
+        final Set<TreeNode<GedcomLine>> restored = Collections.newSetFromMap(new IdentityHashMap<>());
+        int cRemapped = 0;
+        try (final GedcomRecordReader in = new GedcomRecordReader(FileInput.open(newFilename))) {
+            for (TreeNode<GedcomLine> top = in.next(); top != null; top = in.next()) {
+                final String exportedId = top.getObject().hasID() ? top.getObject().getID() : null;
+                cRemapped += remapIds(top);
+                saveDecision(exportedId, top);
+
+                if (top.getObject().getTag().equals(GedcomTag.HEAD)) {
+                    final TreeNode<GedcomLine> head = top;
+                    metrics.phase("root").timed(() -> root(headOld, head)).run();
+                    declareUtf8(head);
+                }
+
+                final List<TreeNode<GedcomLine>> oldTops = exportedId == null ? null : mapExportedToOld.get(exportedId);
+                if (oldTops != null) {
+                    newRecords.current(top, exportedId);
+                    restore.visit(oldTops, restoring);
+                    newRecords.current(null, null);
+                    restored.addAll(oldTops);
+                }
+                addNewNodes();
+
+                out.write(top);
+                views.clear();
+            }
+        }
+
+        Log.info("Remapped IDs: {} lines rewritten.", cRemapped);
+
+        // OLD records with nothing in NEW still need to be visited (to report them)
+        final List<TreeNode<GedcomLine>> unrestored = new ArrayList<>();
+        for (final TreeNode<GedcomLine> oldTop : oldRoot) {
+            if (!restored.contains(oldTop)) {
+                unrestored.add(oldTop);
+            }
+        }
+        restore.visit(unrestored, restoring);
+        restore.finish();
         addNewNodes();
+
+        for (final TreeNode<GedcomLine> added : newRecords.added()) {
+            out.write(added);
+        }
+        out.flush();
+    }
+
+    /*
+    In streaming mode, the only NEW record that can be found is the one currently being processed.
+    New top-level records go under a root for each OLD record (by its place in OLD).
+     */
+    private static final class StreamedRecords implements RecordLookup {
+        private final SortedMap<Integer, TreeNode<GedcomLine>> roots = new TreeMap<>();
+        private TreeNode<GedcomLine> current;
+        private String currentId;
+        private int ordinal;
+
+        void current(final TreeNode<GedcomLine> top, final String exportedId) {
+            this.current = top;
+            this.currentId = exportedId;
+        }
+
+        void restoring(final int ordinal) {
+            this.ordinal = ordinal;
+        }
+
+        List<TreeNode<GedcomLine>> added() {
+            final List<TreeNode<GedcomLine>> added = new ArrayList<>();
+            this.roots.values().forEach(root -> root.forEach(added::add));
+            return added;
+        }
+
+        @Override
+        public TreeNode<GedcomLine> getNode(final String id) {
+            return this.current != null && id != null && id.equals(this.currentId) ? this.current : null;
+        }
+
+        @Override
+        public TreeNode<GedcomLine> getRoot() {
+            return this.roots.computeIfAbsent(this.ordinal, k -> new TreeNode<>());
+        }
+    }
+
+    private void matchOld(final RecordPass matchOld, final TreeNode<GedcomLine> oldRoot, final List<OldIndex.Key> oldKeys) {
+        if (oldKeys == null) {
+            matchOld.run(oldRoot);
+        } else {
+            oldKeys.forEach(k -> matchOldKey(k.tag, k.title, k.oldId));
+        }
+    }
+
+    /**
+     * Version of how {@link #oldMatchKeys} derives the keys (saved in each OldIndex).
+     * Change it whenever keys would come out differently for the same OLD records:
+     * other titles, other record types, other birth years (see {@link YearResolver}), etc.
+     */
+    static final int MATCH_KEYS_VERSION = 1;
+
+    /*
+    Runs just the OLD side of matching, collecting the match keys instead of
+    matching them (to save in an OldIndex, or to match many NEW files to).
+    Not for fuzzy matching, which needs OLD's records, not just their keys.
+     */
+    static List<OldIndex.Key> oldMatchKeys(final Iterable<TreeNode<GedcomLine>> oldRecords) {
+        return oldMatchKeys(oldRecords, null, new YearResolver());
+    }
+
+    static List<OldIndex.Key> oldMatchKeys(final Iterable<TreeNode<GedcomLine>> oldRecords, final RecordViews oldViews, final YearResolver years) {
+        final GedcomMatcher matcher = new GedcomMatcher(false, oldViews, years);
+        final List<OldIndex.Key> keys = new ArrayList<>(1024);
+        matcher.oldKeySink = keys;
+        final RecordPass matchOld = new RecordPass();
+        matcher.matchers(new RecordPass(), matchOld);
+        matchOld.run(oldRecords);
+        return keys;
+    }
+
+    private void matchers(final RecordPass indexNew, final RecordPass matchOld) {
+        matchers(phase -> indexNew, matchOld);
+        phase(null, indexNew);
+    }
+
+    /*
+    indexNew gives the pass that indexes NEW for each phase: either the same one
+    for all phases (one traversal), or a separate one for each (see indexScheduled).
+     */
+    private void matchers(final Function<String, RecordPass> indexNew, final RecordPass matchOld) {
+        repo(matcher("repo", indexNew, matchOld), matchOld);
+        sour(matcher("sour", indexNew, matchOld), matchOld);
+        indi(matcher("indi", indexNew, matchOld), matchOld);
+        obje(matcher("obje", indexNew, matchOld), matchOld);
+        phase(null, matchOld);
+    }
+
+    private RecordPass matcher(final String name, final Function<String, RecordPass> indexNew, final RecordPass matchOld) {
+        final RecordPass pass = indexNew.apply(name);
+        phase(name, pass, matchOld);
+        return pass;
+    }
+
+    /*
+    The phases' indexing passes are independent: each reads only NEW and adds only to
+    its own MatchIndex (which is created here, beforehand, so that the map of indices
+    is not changed while they run).
+     */
+    private void indexScheduled(final Map<String, RecordPass> indexNew, final TreeNode<GedcomLine> newRoot) {
+        for (final GedcomTag tag : new GedcomTag[] { GedcomTag.REPO, GedcomTag.SOUR, GedcomTag.INDI, GedcomTag.OBJE }) {
+            index(tag);
+        }
+        final PhaseScheduler scheduler = new PhaseScheduler();
+        indexNew.forEach((phase, pass) -> scheduler.add(phase, () -> pass.run(newRoot)));
+        scheduler.run(true);
+    }
+
+    private void phase(final String name, final RecordPass... passes) {
+        for (final RecordPass pass : passes) {
+            pass.phase(name == null ? null : metrics.phase(name));
+        }
+    }
+
+    private void reportDuplicates() {
+        Log.info("Birth years: {}", years);
+        final Map<GedcomTag, Set<String>> duplicates = duplicates();
+        if (!duplicates.isEmpty()) {
+            Log.section("WARNING: Duplicates found:");
+            duplicates.forEach((tag, titles) -> {
+                final Metrics.Phase phase = metrics.phase(tag.name().toLowerCase(Locale.ROOT));
+                Log.warn("{}: {}", tag, titles);
+                titles.forEach(title -> {
+                    phase.duplicate();
+                    Log.report("duplicate", "match", "", "", tag.name() + "|" + title);
+                });
+            });
+        }
+    }
+
+    /**
+     * Match values that were found on more than one NEW record (and so could not be
+     * matched), by record type.
+     */
+    Map<GedcomTag, Set<String>> duplicates() {
+        final Map<GedcomTag, Set<String>> duplicates = new EnumMap<>(GedcomTag.class);
+        indices.forEach((tag, index) -> {
+            if (!index.duplicates().isEmpty()) {
+                duplicates.put(tag, index.duplicates());
+            }
+        });
+        return duplicates;
+    }
+
+    /**
+     * NEW (exported) IDs that were changed back to OLD IDs.
+     */
+    Map<String, String> remappedIds() {
+        return Collections.unmodifiableMap(mapRemapIds);
+    }
+
+    /*
+    Restoring needs the remapped IDs. Dates are converted in place, and notes and
+    citations are matched by date, so all dates must be done before anything else.
+    The rest of the phases only queue up changes (in newNodes), so they can share a stage.
+     */
+    private RecordPass restorers(final RecordLookup oldRecords, final RecordLookup newRecords) {
+        final RecordPass restore = new RecordPass();
+        phase("date", restore);
+        date(restore, newRecords);
+        restore.then();
+        phase("note", restore);
+        note(restore, oldRecords, newRecords, newNodes);
+        phase("quay", restore);
+        quay(restore, newRecords, newNodes);
+//        phase("sourApid", restore);
+//        sourApid(restore, newRecords, newNodes);
+        phase("mergeObjes", restore);
+        mergeObjes(restore, newRecords, newNodes);
+        phase("xy", restore);
+        xy(restore, newRecords, newNodes);
+        phase(null, restore);
+        return restore;
+    }
+
+    /*
+    For running in parallel: the same phases as restorers, each in its own pass over
+    OLD, scheduled by what they depend on: only note and quay read dates, so only they
+    wait for date. The phases read OLD and only queue changes to NEW (each in its own
+    list), except for date, which changes DATE lines of NEW in place.
+
+    Within date, note, and quay, OLD records are also restored in parallel: each OLD
+    record only reads (or, for dates, changes) its counterpart in NEW. OLD records
+    with the same match key (duplicates) all have the same counterpart, so date
+    visits the OLD records of each counterpart one after another, on one thread.
+
+    Each NEW node gets queued children from one phase only (events get notes, citations
+    get QUAYs, OBJEs get FILEs, INDIs get _XYs, and the root gets NOTE records), and
+    each phase queues in OLD's order, so taking the lists phase by phase gives each node
+    the same children, in the same order, as the interleaved restorers pass.
+     */
+    private void restoreScheduled(final RecordLookup oldRecords, final RecordLookup newRecords) {
+        final TreeNode<GedcomLine> oldRoot = oldRecords.getRoot();
+        final PhaseScheduler scheduler = new PhaseScheduler();
+        final RecordPass date = pass("date").parallel(true).groupBy(top -> counterpart(top, newRecords));
+        date(date, newRecords);
+        scheduler.add("date", () -> date.run(oldRoot));
+        final RecordPass note = pass("note").parallel(true);
+        scheduler.add("note", () -> note.run(oldRoot), "date");
+        note(note, oldRecords, newRecords, scheduler.added("note"));
+        final RecordPass quay = pass("quay").parallel(true);
+        scheduler.add("quay", () -> quay.run(oldRoot), "date");
+        quay(quay, newRecords, scheduler.added("quay"));
+        final RecordPass mergeObjes = pass("mergeObjes");
+        scheduler.add("mergeObjes", () -> mergeObjes.run(oldRoot));
+        mergeObjes(mergeObjes, newRecords, scheduler.added("mergeObjes"));
+        final RecordPass xy = pass("xy");
+        scheduler.add("xy", () -> xy.run(oldRoot));
+        xy(xy, newRecords, scheduler.added("xy"));
+        newNodes.addAll(scheduler.run(true));
     }
 
-    private static void sourApid(Loader oldLoad, Loader newLoad) {
-        System.err.println();
-        System.err.println("------------------------------------------------------------");
-        System.err.println("SOUR._APIDs");
-        oldLoad.getGedcom().getRoot().forEach(oldSourNode -> {
+    private RecordPass pass(final String phase) {
+        return new RecordPass().phase(metrics.phase(phase));
+    }
+
+    /*
+    Queues a node to be added to NEW. Records can be restored in parallel (see Deferred),
+    but the nodes are still queued in OLD's record order.
+     */
+    private static void queue(final List<ChildToBeAdded> added, final ChildToBeAdded child) {
+        Deferred.run(() -> added.add(child));
+    }
+
+    /*
+    The record in NEW that corresponds to the given record in OLD. NEW records are found
+    by the IDs they were exported with, so remapped records are looked up by their old ID.
+    An unmatched OLD record has no counterpart if NEW's record with the same ID was
+    matched to some other OLD record.
+     */
+    private TreeNode<GedcomLine> counterpart(final TreeNode<GedcomLine> oldTop, final RecordLookup newRecords) {
+        final String id = counterpartId(oldTop);
+        return id == null ? null : newRecords.getNode(id);
+    }
+
+    // the ID (as exported) of the NEW record that an OLD record restores into, if any
+    private String counterpartId(final TreeNode<GedcomLine> oldTop) {
+        if (!oldTop.getObject().hasID()) {
+            return null;
+        }
+        final String id = oldTop.getObject().getID();
+        if (mapReverseIds.containsKey(id)) {
+            return mapReverseIds.get(id);
+        } else if (mapRemapIds.containsKey(id)) {
+            return null;
+        }
+        return id;
+    }
+
+    private void sourApid(final RecordPass restore, final RecordLookup newRecords, final List<ChildToBeAdded> added) {
+        restore.onStart(() -> Log.section("SOUR._APIDs"));
+        restore.on(GedcomTag.SOUR, oldSourNode -> {
             final GedcomLine oldSourLine = oldSourNode.getObject();
-            if (oldSourLine.getTag().equals(GedcomTag.SOUR)) {
-                final String apid = findChild(oldSourNode, "_APID");
-                if (!apid.isEmpty()) {
-                    final String newSourId = mapReverseIds.get(oldSourLine.getID());
-                    if (newSourId == null) {
-                        System.err.println("    NOT FOUND, for sour: "+oldSourLine.getID());
-                    } else {
-                        final TreeNode<GedcomLine> newSourNode = newLoad.getGedcom().getNode(newSourId);
-                        assert newSourNode != null;
-                        newSourNode.addChild(new TreeNode<>(new GedcomLine(1, "", "_APID", apid)));
-                    }
+            final String apid = findChild(oldSourNode, "_APID");
+            if (!apid.isEmpty()) {
+                final String newSourId = mapReverseIds.get(oldSourLine.getID());
+                if (newSourId == null) {
+                    Log.warn("    NOT FOUND, for sour: {}", oldSourLine.getID());
+                    Log.report("not-found", "sourApid", oldSourLine.getID(), "", apid);
+                } else {
+                    final TreeNode<GedcomLine> newSourNode = newRecords.getNode(newSourId);
+                    assert newSourNode != null;
+                    queue(added, new ChildToBeAdded(newSourNode, new TreeNode<>(new GedcomLine(1, "", "_APID", apid))));
                 }
             }
         });
     }
 
-    private static void mergeObjes(Loader oldLoad, Loader newLoad) {
-        System.err.println();
-        System.err.println("------------------------------------------------------------");
-        System.err.println("OBJEs");
-        oldLoad.getGedcom().getRoot().forEach(oldObjeNode -> {
+    private void mergeObjes(final RecordPass restore, final RecordLookup newRecords, final List<ChildToBeAdded> added) {
+        restore.onStart(() -> Log.section("OBJEs"));
+        final Metrics.Phase phase = metrics.phase("mergeObjes");
+        restore.on(GedcomTag.OBJE, oldObjeNode -> {
             final GedcomLine oldObjeLine = oldObjeNode.getObject();
-            if (oldObjeLine.getTag().equals(GedcomTag.OBJE)) {
-                String id = oldObjeLine.getID();
-                if (mapReverseIds.containsKey(id)) {
-                    id = mapReverseIds.get(id);
-                }
-                final TreeNode<GedcomLine> newObjeNode = newLoad.getGedcom().getNode(id);
-                if (newObjeNode == null) {
-                    System.err.println("    NOT FOUND, for obje: "+oldObjeLine.getID());
-                } else {
-                    System.err.println("    found: "+newObjeNode.getObject());
-                    final TreeNode<GedcomLine> newFileNode = findChildNode(newObjeNode, GedcomTag.FILE);
-                    newObjeNode.addChildBefore(findChildNode(oldObjeNode, GedcomTag.FILE), newFileNode);
-                }
+            final TreeNode<GedcomLine> newObjeNode = counterpart(oldObjeNode, newRecords);
+            if (newObjeNode == null) {
+                phase.miss();
+                Log.warn("    NOT FOUND, for obje: {}", oldObjeLine.getID());
+                Log.report("not-found", "obje", oldObjeLine.getID(), "", "");
+            } else {
+                phase.match();
+                Log.debug("    found: {}", newObjeNode.getObject());
+                final TreeNode<GedcomLine> newFileNode = findChildNode(newObjeNode, GedcomTag.FILE);
+                // queued (not added now) so that other phases still see NEW as exported
+                queue(added, new ChildToBeAdded(newObjeNode, findChildNode(oldObjeNode, GedcomTag.FILE), newFileNode));
             }
         });
     }
 
-    private static void root(Loader oldLoad, Loader newLoad) {
-        TreeNode<GedcomLine> headOld = null;
-        {
-            final Iterator<TreeNode<GedcomLine>> iTop = oldLoad.getGedcom().getRoot().children();
-            while (iTop.hasNext() && headOld == null) {
-                final TreeNode<GedcomLine> nodeTop = iTop.next();
-                if (nodeTop.getObject().getTag().equals(GedcomTag.HEAD)) {
-                    headOld = nodeTop;
-                }
+    private static TreeNode<GedcomLine> findHead(final TreeNode<GedcomLine> root) {
+        final Iterator<TreeNode<GedcomLine>> iTop = root.children();
+        while (iTop.hasNext()) {
+            final TreeNode<GedcomLine> nodeTop = iTop.next();
+            if (nodeTop.getObject().getTag().equals(GedcomTag.HEAD)) {
+                return nodeTop;
+            }
+        }
+        return null;
+    }
+
+    /*
+    GedcomRecordWriter always writes UTF-8, whatever NEW was read as.
+     */
+    private static void declareUtf8(final TreeNode<GedcomLine> headNew) {
+        if (headNew == null) {
+            return;
+        }
+        for (final TreeNode<GedcomLine> item : headNew) {
+            if (item.getObject().getTag().equals(GedcomTag.CHAR)) {
+                item.setObject(item.getObject().replaceValue("UTF-8"));
+                return;
             }
         }
+    }
+
+    private void root(final TreeNode<GedcomLine> headOld, final TreeNode<GedcomLine> headNew) {
         if (headOld == null) {
             return;
         }
 
         String root = null;
         {
-            final Iterator<TreeNode<GedcomLine>> iItem = headOld.children();
-            while (iItem.hasNext() && root == null) {
-                final TreeNode<GedcomLine> nodeItem = iItem.next();
-                if (nodeItem.getObject().getTagString().equals("_ROOT")) {
-                    root = nodeItem.getObject().getPointer();
-                }
+            final TreeNode<GedcomLine> nodeItem = findChildNode(headOld, "_ROOT");
+            if (nodeItem != null) {
+                root = nodeItem.getObject().getPointer();
             }
         }
         if (root == null) {
             return;
         }
 
-        TreeNode<GedcomLine> headNew = null;
-        {
-            final Iterator<TreeNode<GedcomLine>> iTop = newLoad.getGedcom().getRoot().children();
-            while (iTop.hasNext() && headNew == null) {
-                final TreeNode<GedcomLine> nodeTop = iTop.next();
-                if (nodeTop.getObject().getTag().equals(GedcomTag.HEAD)) {
-                    headNew = nodeTop;
-                }
-            }
-        }
         if (headNew == null) {
             return;
         }
 
         {
-            final Iterator<TreeNode<GedcomLine>> iItem = headNew.children();
-            while (iItem.hasNext()) {
-                final TreeNode<GedcomLine> nodeItem = iItem.next();
+            final TreeNode<GedcomLine> nodeItem = findChildNode(headNew, "_ROOT");
+            if (nodeItem != null) {
                 final GedcomLine item = nodeItem.getObject();
-                if (item.getTagString().equals("_ROOT")) {
-                    nodeItem.setObject(new GedcomLine(item.getLevel(), "", "_ROOT", "@"+root+"@"));
-                    return;
-                }
+                nodeItem.setObject(new GedcomLine(item.getLevel(), "", "_ROOT", "@"+root+"@"));
+                return;
             }
             newNodes.add(new ChildToBeAdded(headNew, new TreeNode<GedcomLine>(new GedcomLine(1, "", "_ROOT", "@"+root+"@"))));
         }
 
     }
 
-    private static final Map<String, String> mapTitleToAncestryId = new HashMap<>(512);
-    private static final Set<String> setTitleDuplicates = new HashSet<>(16);
-    private static final Map<String, String> mapRemapIds = new HashMap<>(128);
-    private static final Map<String, String> mapReverseIds = new HashMap<>(128);
+    private final boolean fuzzyIndis;
+    private final Map<GedcomTag, MatchIndex> indices = new EnumMap<>(GedcomTag.class);
+    // looked up for every line (remapIds) and every citation (counterpart), so keyed by packed ID
+    private final Map<String, String> mapRemapIds = new IdMap();
+    private final Map<String, String> mapReverseIds = new IdMap();
+    private final Map<String, String> mapDecisions = new IdMap();
+    private final Set<String> setDecidedNew = new HashSet<>();
+    private final Set<String> setDecidedOld = new HashSet<>();
+    private List<OldIndex.Key> oldKeySink;
+    private MatchState state;
+    private Metrics metrics = Metrics.NONE;
+    private boolean parallelPhases = true;
+    private boolean patching;
+
+    /**
+     * Each matcher holds the state for merging one NEW file, so separate
+     * matchers can run at the same time (against the same OLD).
+     * @param fuzzyIndis true to try fuzzy matching for INDIs with no exact match
+     * @param oldViews views of OLD shared by all matchers (already built, and never
+     * changed again), or null
+     * @param years date cache (which may be shared)
+     */
+    GedcomMatcher(final boolean fuzzyIndis, final RecordViews oldViews, final YearResolver years) {
+        this.fuzzyIndis = fuzzyIndis;
+        this.views = new RecordViews(oldViews);
+        this.years = years;
+    }
+
+    GedcomMatcher() {
+        this(false, null, new YearResolver());
+    }
+
+    /**
+     * Reuses the match decisions of the previous run (for NEW records that have not
+     * changed since), and saves this run's decisions in the state, for the next run.
+     * @param state the saved decisions, or null to match everything
+     */
+    void incremental(final MatchState state) {
+        this.state = state;
+    }
+
+    /**
+     * Whether (when merging whole trees) phases that do not depend on each other
+     * run at the same time (see {@link PhaseScheduler}), each in its own pass, with
+     * records restored in parallel; or all phases share passes (see {@link #restorers}),
+     * one record at a time. The result is the same either way. Default is true.
+     */
+    void parallelPhases(final boolean parallel) {
+        this.parallelPhases = parallel;
+    }
+
+    /**
+     * For writing a patch (see {@link GedcomPatch}): lines of NEW are still changed in
+     * place, but (when merging whole trees) nodes to be added are only queued (see
+     * {@link #queued}), so NEW keeps the structure it was exported with.
+     */
+    void patching(final boolean patching) {
+        this.patching = patching;
+    }
+
+    /**
+     * Nodes still to be added to NEW (see {@link #patching}).
+     */
+    List<ChildToBeAdded> queued() {
+        return Collections.unmodifiableList(newNodes);
+    }
+
+    /**
+     * Counts this matcher's phases in the given metrics (which may be shared).
+     */
+    void metrics(final Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /*
+    Forget everything matched so far (for the benchmarks, which run the phases repeatedly).
+     */
+    void reset() {
+        indices.clear();
+        mapRemapIds.clear();
+        mapReverseIds.clear();
+        mapDecisions.clear();
+        setDecidedNew.clear();
+        setDecidedOld.clear();
+        newNodes.clear();
+        views.clear();
+        years.clear();
+    }
 
     /*
     Some SOUR records are matched by _UID. If there is no _UID, then we try
     to match them from original.ged and reset the IDs to match.
     We only match on unique titles.
      */
-    private static void sour(final Loader oldLoad, final Loader newLoad) {
-        heuristicRestoreId(oldLoad, GedcomTag.SOUR, GedcomTag.TITL, newLoad);
+    private void sour(final RecordPass indexNew, final RecordPass matchOld) {
+        heuristicRestoreId(indexNew, matchOld, GedcomTag.SOUR, GedcomTag.TITL);
     }
 
-    private static void repo(final Loader oldLoad, final Loader newLoad) {
-        heuristicRestoreId(oldLoad, GedcomTag.REPO, GedcomTag.NAME, newLoad);
+    private void repo(final RecordPass indexNew, final RecordPass matchOld) {
+        heuristicRestoreId(indexNew, matchOld, GedcomTag.REPO, GedcomTag.NAME);
     }
 
     /*
     We do INDIs the same as SOURces, matching on name.
     */
-    private static void indi(final Loader oldLoad, final Loader newLoad) {
-        heuristicRestoreIdIndis(oldLoad, newLoad);
+    private void indi(final RecordPass indexNew, final RecordPass matchOld) {
+        heuristicRestoreIdIndis(indexNew, matchOld);
     }
 
     // Also OBJE, matching on title/format
-    private static void obje(final Loader oldLoad, final Loader newLoad) { heuristicRestoreIdObjes(oldLoad, newLoad); }
-
-    private static void heuristicRestoreId(final Loader oldLoad, final GedcomTag tagRecord, final GedcomTag tagMatch, final Loader newLoad) {
-        // build map of match-values to Ancestry IDs (but ignore duplicates)
-        newLoad.getGedcom().getRoot().forEach(top -> {
-            final GedcomLine gedcomLine = top.getObject();
-            if (gedcomLine.getTag().equals(tagRecord)) {
-                if (findChild(top, GedcomTag.REFN).isEmpty()) {
-                    final String title = findChild(top, tagMatch);
-                    if (!setTitleDuplicates.contains(title)) {
-                        if (mapTitleToAncestryId.containsKey(title)) {
-                            mapTitleToAncestryId.remove(title);
-                            setTitleDuplicates.add(title);
-                        } else {
-                            mapTitleToAncestryId.put(title, gedcomLine.getID());
-                        }
-                    }
-                }
+    private void obje(final RecordPass indexNew, final RecordPass matchOld) { heuristicRestoreIdObjes(indexNew, matchOld); }
+
+    /*
+    Each record type has its own index, because the passes index
+    all record types at the same time.
+     */
+    private MatchIndex index(final GedcomTag tagRecord) {
+        return indices.computeIfAbsent(tagRecord, t -> new MatchIndex());
+    }
+
+    // build map of match-values to Ancestry IDs (but ignore duplicates)
+    private void addMatchKey(final GedcomTag tagRecord, final String title, final String ancestryId) {
+        if (setDecidedNew.contains(ancestryId)) {
+            return;
+        }
+        index(tagRecord).add(title, ancestryId);
+    }
+
+    /*
+    check an original record to see if we can match it
+    to an Ancestry record. If so, we will remap the Ancestry
+    ID back to the Original ID.
+     */
+    private boolean restoreId(final GedcomTag tagRecord, final String title, final String originalId) {
+        final String ancestryId = index(tagRecord).get(title);
+        if (ancestryId == null) {
+            return false;
+        }
+        remap(ancestryId, originalId);
+        return true;
+    }
+
+    /*
+    The OLD side of matching, for one match key of one OLD record.
+    (Or, if collecting keys for an index, just save the key.)
+     */
+    private void matchOldKey(final GedcomTag tagRecord, final String title, final String originalId) {
+        if (oldKeySink != null) {
+            oldKeySink.add(new OldIndex.Key(tagRecord, title, originalId));
+            return;
+        }
+        if (setDecidedOld.contains(originalId)) {
+            return;
+        }
+        final Metrics.Phase phase = metrics.phase(tagRecord.name().toLowerCase(Locale.ROOT));
+        if (restoreId(tagRecord, title, originalId)) {
+            phase.match();
+        } else {
+            phase.miss();
+            if (tagRecord.equals(GedcomTag.INDI)) {
+                Log.warn("WARNING: Cannot match INDI based on name|birthyear: {}", title);
+                Log.report("not-found", "indi", originalId, "", title);
+            } else if (tagRecord.equals(GedcomTag.OBJE)) {
+                Log.warn("WARNING: Cannot match OBJE based on title|person: {}", title);
+                Log.report("not-found", "obje", originalId, "", title);
+            }
+        }
+    }
+
+    private void remap(final String ancestryId, final String originalId) {
+        mapDecisions.put(ancestryId, originalId);
+        if (!ancestryId.equals(originalId)) {
+            mapRemapIds.put(ancestryId, originalId);
+            mapReverseIds.put(originalId, ancestryId);
+        }
+    }
+
+    /*
+    An unchanged NEW record that was matched last time gets the same match again,
+    and neither it nor its OLD record is matched any further. (Unmatched records
+    are always tried again, because what they would match can have changed.
+    So are OBJEs, because they are matched by the name of the INDI that uses them,
+    which can change without the OBJE changing.)
+     */
+    private void replayDecision(final TreeNode<GedcomLine> top) {
+        if (state == null || !top.getObject().hasID() || top.getObject().getTag().equals(GedcomTag.OBJE)) {
+            return;
+        }
+        final String decision = state.previousDecision(top);
+        if (decision != null && !decision.isEmpty()) {
+            final String ancestryId = top.getObject().getID();
+            remap(ancestryId, decision);
+            setDecidedNew.add(ancestryId);
+            setDecidedOld.add(decision);
+        }
+    }
+
+    private void saveDecision(final String exportedId, final TreeNode<GedcomLine> remapped) {
+        if (state != null && exportedId != null) {
+            state.put(exportedId, remapped, mapDecisions.getOrDefault(exportedId, ""));
+        }
+    }
+
+    void heuristicRestoreId(final RecordPass indexNew, final RecordPass matchOld, final GedcomTag tagRecord, final GedcomTag tagMatch) {
+        indexNew.on(tagRecord, top -> {
+            if (findChild(top, GedcomTag.REFN).isEmpty()) {
+                addMatchKey(tagRecord, findChild(top, tagMatch), top.getObject().getID());
             }
         });
 
-        /*
-        check each original record to see if we can match it
-        to an Ancestry record. If so, we will remap the Ancestry
-        ID back to the Original ID.
-         */
-        oldLoad.getGedcom().getRoot().forEach(top -> {
-            final GedcomLine gedcomLine = top.getObject();
-            if (gedcomLine.getTag().equals(tagRecord)) {
-                if (findChild(top, GedcomTag.REFN).isEmpty()) {
-                    final String title = findChild(top, tagMatch);
-                    if (mapTitleToAncestryId.containsKey(title)) {
-                        final String ancestryId = mapTitleToAncestryId.get(title);
-                        final String originalId = gedcomLine.getID();
-                        if (!ancestryId.equals(originalId)) {
-                            mapRemapIds.put(ancestryId, originalId);
-                            mapReverseIds.put(originalId, ancestryId);
-                        }
-                    }
-                }
+        matchOld.on(tagRecord, top -> {
+            if (findChild(top, GedcomTag.REFN).isEmpty()) {
+                matchOldKey(tagRecord, findChild(top, tagMatch), top.getObject().getID());
             }
         });
     }
 
-    private static void heuristicRestoreIdIndis(final Loader oldLoad, final Loader newLoad) {
-        // build map of match-values to Ancestry IDs (but ignore duplicates)
-        newLoad.getGedcom().getRoot().forEach(top -> {
-            final GedcomLine gedcomLine = top.getObject();
-            if (gedcomLine.getTag().equals(GedcomTag.INDI)) {
-                if (findChild(top, GedcomTag.REFN).isEmpty()) {
-                    final String name = findChild(top, GedcomTag.NAME);
-                    final String birthYear = getBirthYear(top);
-                    final String title = name+"|"+birthYear;
-                    if (!setTitleDuplicates.contains(title)) {
-                        if (mapTitleToAncestryId.containsKey(title)) {
-                            mapTitleToAncestryId.remove(title);
-                            setTitleDuplicates.add(title);
-                        } else {
-                            final String id = gedcomLine.getID();
-                            mapTitleToAncestryId.put(title, id);
-                        }
-                    }
+    void heuristicRestoreIdIndis(final RecordPass indexNew, final RecordPass matchOld) {
+        final FuzzyIndiMatcher fuzzy = fuzzyIndis ? new FuzzyIndiMatcher(views, years, this::getBirthYear) : null;
+
+        indexNew.on(GedcomTag.INDI, top -> {
+            if (findChild(top, GedcomTag.REFN).isEmpty()) {
+                final String name = findChild(top, GedcomTag.NAME);
+                final String birthYear = getBirthYear(top);
+                final String title = name+"|"+birthYear;
+                addMatchKey(GedcomTag.INDI, title, top.getObject().getID());
+                if (fuzzy != null && !setDecidedNew.contains(top.getObject().getID())) {
+                    fuzzy.addCandidate(top);
                 }
             }
+            if (fuzzy != null) {
+                fuzzy.addNewName(top);
+            }
         });
 
-        /*
-        check each original record to see if we can match it
-        to an Ancestry record. If so, we will remap the Ancestry
-        ID back to the Original ID.
-         */
-        oldLoad.getGedcom().getRoot().forEach(top -> {
-            final GedcomLine gedcomLine = top.getObject();
-            if (gedcomLine.getTag().equals(GedcomTag.INDI)) {
-                if (findChild(top, GedcomTag.REFN).isEmpty()) {
-                    final String name = findChild(top, GedcomTag.NAME);
-                    final String birthYear = getBirthYear(top);
-                    final String title = name+"|"+birthYear;
-                    if (mapTitleToAncestryId.containsKey(title)) {
-                        final String ancestryId = mapTitleToAncestryId.get(title);
-                        final String originalId = gedcomLine.getID();
-                        if (!ancestryId.equals(originalId)) {
-                            mapRemapIds.put(ancestryId, originalId);
-                            mapReverseIds.put(originalId, ancestryId);
-                        }
+        matchOld.on(GedcomTag.INDI, top -> {
+            if (findChild(top, GedcomTag.REFN).isEmpty()) {
+                final String name = findChild(top, GedcomTag.NAME);
+                final String birthYear = getBirthYear(top);
+                final String title = name+"|"+birthYear;
+                if (fuzzy == null) {
+                    matchOldKey(GedcomTag.INDI, title, top.getObject().getID());
+                } else if (!setDecidedOld.contains(top.getObject().getID())) {
+                    if (restoreId(GedcomTag.INDI, title, top.getObject().getID())) {
+                        metrics.phase("indi").match();
+                        fuzzy.claim(index(GedcomTag.INDI).get(title));
                     } else {
-                        System.err.println("WARNING: Cannot match INDI based on name|birthyear: "+title);
+                        fuzzy.addUnmatched(top);
                     }
                 }
             }
+            if (fuzzy != null) {
+                fuzzy.addOldName(top);
+            }
         });
+
+        if (fuzzy != null) {
+            indexNew.on(GedcomTag.FAM, fuzzy::addNewFamily);
+            matchOld.on(GedcomTag.FAM, fuzzy::addOldFamily);
+            matchOld.onFinish(() -> restoreIdsFuzzy(fuzzy));
+        }
     }
 
-    private static void heuristicRestoreIdObjes(final Loader oldLoad, final Loader newLoad) {
+    /*
+    Second chance for the INDIs that had no exact name|birthyear match:
+    see FuzzyIndiMatcher. (Parents are only known after all FAMs are seen.)
+     */
+    private void restoreIdsFuzzy(final FuzzyIndiMatcher fuzzy) {
+        int cMatched = 0;
+        int cTried = 0;
+        for (final FuzzyIndiMatcher.Match m : fuzzy.match()) {
+            ++cTried;
+            if (m.newId == null) {
+                metrics.phase("indi").miss();
+            }
+            if (m.newId != null) {
+                ++cMatched;
+                metrics.phase("indi").match();
+                remap(m.newId, m.oldId);
+                Log.debug("Fuzzy INDI match: {} --> {} (score {})", m.title, m.newId, m.score);
+                Log.report("fuzzy", "indi", m.oldId, m.newId, "score "+m.score);
+            } else if (m.ambiguous) {
+                Log.warn("WARNING: Cannot match INDI, MULTIPLE fuzzy matches: {}", m.title);
+                Log.report("multiple", "indi", m.oldId, "", m.title);
+            } else {
+                Log.warn("WARNING: Cannot match INDI based on name|birthyear (or fuzzy match): {}", m.title);
+                Log.report("not-found", "indi", m.oldId, "", m.title);
+            }
+        }
+        Log.info("Fuzzy INDI matches: {} of {}.", cMatched, cTried);
+    }
+
+    /*
+    OBJEs are matched by which INDI uses them, so they can only be
+    matched after all INDIs have been seen, at the end of each pass.
+    (Only the titles are kept until then, not the records.)
+     */
+    void heuristicRestoreIdObjes(final RecordPass indexNew, final RecordPass matchOld) {
         final Map<String, String> mapNewObjeToIndi = new HashMap<>();
-        newLoad.getGedcom().getRoot().forEach(indi-> {
-            final GedcomLine gedcomLine = indi.getObject();
-            if (gedcomLine.getTag().equals(GedcomTag.INDI)) {
-                final String name = findChild(indi, GedcomTag.NAME);
-                for (final TreeNode<GedcomLine> c : indi) {
-                    final GedcomLine cLine = c.getObject();
-                    if (cLine.getTag().equals(GedcomTag.OBJE)) {
-                        // don't bother checking for dups, this is heuristic only
-                        mapNewObjeToIndi.put(cLine.getPointer(), name);
-                    }
-                }
+        final Map<String, List<String>> newObjeTitles = new LinkedHashMap<>();
+        indexNew.on(GedcomTag.INDI, indi -> {
+            final String name = findChild(indi, GedcomTag.NAME);
+            for (final TreeNode<GedcomLine> c : views.of(indi).children(GedcomTag.OBJE)) {
+                // don't bother checking for dups, this is heuristic only
+                mapNewObjeToIndi.put(c.getObject().getPointer(), name);
             }
         });
-
-        // build map of match-values to Ancestry IDs (but ignore duplicates)
-        newLoad.getGedcom().getRoot().forEach(obje -> {
-            final GedcomLine gedcomLine = obje.getObject();
-            if (gedcomLine.getTag().equals(GedcomTag.OBJE)) {
-                if (findChild(obje, GedcomTag.REFN).isEmpty()) {
-                    for (final TreeNode<GedcomLine> c : obje) {
-                        if (c.getObject().getTag().equals(GedcomTag.FILE)) {
-                            final String title = findChild(c, GedcomTag.TITL);
-                            final String usedBy = mapNewObjeToIndi.get(gedcomLine.getID());
-                            final String match = title+"|"+usedBy;
-                            if (!setTitleDuplicates.contains(match)) {
-                                if (mapTitleToAncestryId.containsKey(match)) {
-                                    mapTitleToAncestryId.remove(match);
-                                    setTitleDuplicates.add(match);
-                                } else {
-                                    final String id = gedcomLine.getID();
-                                    mapTitleToAncestryId.put(match, id);
-                                }
-                            }
-                        }
-                    }
-                }
+        indexNew.on(GedcomTag.OBJE, obje -> {
+            if (findChild(obje, GedcomTag.REFN).isEmpty()) {
+                newObjeTitles.put(obje.getObject().getID(), fileTitles(obje));
             }
         });
+        indexNew.onFinish(() -> newObjeTitles.forEach((id, titles) -> {
+            for (final String title : titles) {
+                final String usedBy = mapNewObjeToIndi.get(id);
+                final String match = title+"|"+usedBy;
+                addMatchKey(GedcomTag.OBJE, match, id);
+            }
+        }));
 
         final Map<String, String> mapOldObjeToIndi = new HashMap<>();
-        oldLoad.getGedcom().getRoot().forEach(indi-> {
-            final GedcomLine gedcomLine = indi.getObject();
-            if (gedcomLine.getTag().equals(GedcomTag.INDI)) {
-                final String name = findChild(indi, GedcomTag.NAME);
-                for (final TreeNode<GedcomLine> c : indi) {
-                    final GedcomLine cLine = c.getObject();
-                    if (cLine.getTag().equals(GedcomTag.OBJE)) {
-                        // don't bother checking for dups, this is heuristic only
-                        mapOldObjeToIndi.put(cLine.getPointer(), name);
-                    }
-                }
+        final Map<String, List<String>> oldObjeTitles = new LinkedHashMap<>();
+        matchOld.on(GedcomTag.INDI, indi -> {
+            final String name = findChild(indi, GedcomTag.NAME);
+            for (final TreeNode<GedcomLine> c : views.of(indi).children(GedcomTag.OBJE)) {
+                // don't bother checking for dups, this is heuristic only
+                mapOldObjeToIndi.put(c.getObject().getPointer(), name);
             }
         });
-        /*
-        check each original record to see if we can match it
-        to an Ancestry record. If so, we will remap the Ancestry
-        ID back to the Original ID.
-         */
-        oldLoad.getGedcom().getRoot().forEach(obje -> {
-            final GedcomLine gedcomLine = obje.getObject();
-            if (gedcomLine.getTag().equals(GedcomTag.OBJE)) {
-                if (findChild(obje, GedcomTag.REFN).isEmpty()) {
-                    for (final TreeNode<GedcomLine> c : obje) {
-                        if (c.getObject().getTag().equals(GedcomTag.FILE)) {
-                            final String title55 = findChild(c, GedcomTag.TITL);
-                            final String usedBy = mapOldObjeToIndi.get(gedcomLine.getID());
-                            final String match = title55 + "|" + usedBy;
-                            if (mapTitleToAncestryId.containsKey(match)) {
-                                final String ancestryId = mapTitleToAncestryId.get(match);
-                                final String originalId = gedcomLine.getID();
-                                if (!ancestryId.equals(originalId)) {
-                                    mapRemapIds.put(ancestryId, originalId);
-                                    mapReverseIds.put(originalId, ancestryId);
-                                }
-                            } else {
-                                System.err.println("WARNING: Cannot match OBJE based on title|person: " + match);
-                            }
-                        }
-                    }
-                }
+        matchOld.on(GedcomTag.OBJE, obje -> {
+            if (findChild(obje, GedcomTag.REFN).isEmpty()) {
+                oldObjeTitles.put(obje.getObject().getID(), fileTitles(obje));
             }
         });
+        matchOld.onFinish(() -> oldObjeTitles.forEach((id, titles) -> {
+            for (final String title55 : titles) {
+                final String usedBy = mapOldObjeToIndi.get(id);
+                matchOldKey(GedcomTag.OBJE, title55 + "|" + usedBy, id);
+            }
+        }));
     }
 
-    private static void remapIds(final TreeNode<GedcomLine> node) {
-        node.forEach(c -> remapIds(c));
-
-        final GedcomLine gedcomLine = node.getObject();
-        if (gedcomLine != null) {
-            if (gedcomLine.hasID()) {
-                final String newId = mapRemapIds.get(gedcomLine.getID());
-                if (newId != null) {
-                    node.setObject(new GedcomLine(gedcomLine.getLevel(), "@"+newId+"@", gedcomLine.getTag().name(), gedcomLine.getValue()));
-                }
-            }
-            if (gedcomLine.isPointer()) {
-                final String newId = mapRemapIds.get(gedcomLine.getPointer());
-                if (newId != null) {
-                    // assume that no line with a pointer also has an ID (true as of Gedcom 5.5)
-                    node.setObject(new GedcomLine(gedcomLine.getLevel(), "", gedcomLine.getTag().name(), "@"+newId+"@"));
-                }
-            }
-            /* clear out all RINs in the generated file */
-            if (gedcomLine.getTag().equals(GedcomTag.RIN)) {
-                node.setObject(new GedcomLine(gedcomLine.getLevel(), "", gedcomLine.getTag().name(), ""));
-            }
+    private List<String> fileTitles(final TreeNode<GedcomLine> obje) {
+        final List<String> titles = new ArrayList<>(2);
+        for (final TreeNode<GedcomLine> c : views.of(obje).children(GedcomTag.FILE)) {
+            titles.add(findChild(c, GedcomTag.TITL));
         }
+        return titles;
+    }
+
+    /*
+    Change Ancestry IDs (and pointers to them) back to the original IDs.
+    Returns the count of lines rewritten.
+     */
+    private int remapIds(final TreeNode<GedcomLine> node) {
+        return metrics.phase("remapIds").timed(() -> new IdRemapper(mapRemapIds).remap(node));
     }
 
     /*
     _XY records from old file (from Genealogy Research Organizer program) are never
     changed by Ancestry, so restore all of the unconditionally.
      */
-    private static void xy(final Loader oldLoad, final Loader newLoad) {
-        System.err.println("------------------------------------------------------------");
-        System.err.println("XY");
-        oldLoad.getGedcom().getRoot().forEach(oldIndi -> {
-            final GedcomLine gedcomLine = oldIndi.getObject();
-            final GedcomTag tag = gedcomLine.getTag();
-            if (tag.equals(GedcomTag.INDI)) {
-                restoreXY(oldIndi, newLoad);
-            }
-        });
+    private void xy(final RecordPass restore, final RecordLookup newRecords, final List<ChildToBeAdded> added) {
+        restore.onStart(() -> Log.section("XY"));
+        final Metrics.Phase phase = metrics.phase("xy");
+        restore.on(GedcomTag.INDI, oldIndi -> restoreXY(oldIndi, newRecords, added, phase));
     }
 
-    private static void restoreXY(final TreeNode<GedcomLine> oldIndi, final Loader newLoad) {
-        final TreeNode<GedcomLine> newIndi = newLoad.getGedcom().getNode(oldIndi.getObject().getID());
+    private void restoreXY(final TreeNode<GedcomLine> oldIndi, final RecordLookup newRecords, final List<ChildToBeAdded> added, final Metrics.Phase phase) {
+        final TreeNode<GedcomLine> newIndi = counterpart(oldIndi, newRecords);
         if (newIndi != null) {
             final String oldXY = findChild(oldIndi, "_XY");
             if (!oldXY.isEmpty()) {
+                phase.match();
                 final TreeNode<GedcomLine> newXY = findChildNode(newIndi, "_XY");
                 if (newXY == null) {
                     final TreeNode<GedcomLine> xy = new TreeNode<>(newIndi.getObject().createChild("_XY", oldXY));
-                    newNodes.add(new ChildToBeAdded(newIndi, xy));
+                    queue(added, new ChildToBeAdded(newIndi, xy));
                 } else {
                     newXY.setObject(newXY.getObject().replaceValue(oldXY));
                 }
@@ -462,111 +1149,104 @@ class GedcomMatcher {
     This tries to match them to the dates from original.ged and converts them
     back again.
      */
-    private static void date(final Loader oldLoad, final Loader newLoad) {
+    private void date(final RecordPass restore, final RecordLookup newRecords) {
         final Set<GedcomTag> tagsIndi = new HashSet<>(GedcomTag.setIndividualAttribute);
         tagsIndi.addAll(GedcomTag.setIndividualEvent);
         final Set<GedcomTag> tagsFam = GedcomTag.setFamilyEvent;
 
-        System.err.println("------------------------------------------------------------");
-        System.err.println("Dates");
-        oldLoad.getGedcom().getRoot().forEach(top -> {
-            final GedcomLine gedcomLine = top.getObject();
-            final GedcomTag tag = gedcomLine.getTag();
-            if (tag.equals(GedcomTag.INDI)) {
-                dateRangeToPeriodFor(top, newLoad, tagsIndi);
-            } else if (tag.equals(GedcomTag.FAM)) {
-                dateRangeToPeriodFor(top, newLoad, tagsFam);
-            }
-        });
+        restore.onStart(() -> Log.section("Dates"));
+        final DateCounts counts = new DateCounts();
+        final Metrics.Phase phase = metrics.phase("date");
+        restore.on(GedcomTag.INDI, top -> dateRangeToPeriodFor(top, newRecords, tagsIndi, counts, phase));
+        restore.on(GedcomTag.FAM, top -> dateRangeToPeriodFor(top, newRecords, tagsFam, counts, phase));
+        restore.onFinish(() -> Log.info("Dates: {} converted back, {} already correct, {} not found.", counts.cConverted.sum(), counts.cCorrect.sum(), counts.cNotFound.sum()));
     }
 
-    private static void dateRangeToPeriodFor(final TreeNode<GedcomLine> top, final Loader newLoad, final Set<GedcomTag> tagsEvents) {
-        top.forEach(event -> {
-            if (tagsEvents.contains(event.getObject().getTag())) {
+    private static final class DateCounts {
+        final LongAdder cConverted = new LongAdder();
+        final LongAdder cCorrect = new LongAdder();
+        final LongAdder cNotFound = new LongAdder();
+    }
+
+    private void dateRangeToPeriodFor(final TreeNode<GedcomLine> top, final RecordLookup newRecords, final Set<GedcomTag> tagsEvents, final DateCounts counts, final Metrics.Phase phase) {
+        EventDates dates = null;
+        boolean looked = false;
+        for (final TreeNode<GedcomLine> event : top) {
+            final GedcomTag tag = event.getObject().getTag();
+            if (tagsEvents.contains(tag)) {
                 final TreeNode<GedcomLine> d = findDate(event);
                 if (d != null) {
                     final String ds = d.getObject().getValue();
                     if (ds.startsWith("FROM ") || ds.startsWith("TO ")) {
                         final String dsWant = cvtRangeToPeriod(ds);
-                        System.err.println("dateRangeToPeriodFor: " + top.getObject() + " | " + event + " | " + d + " | looking for: " + dsWant);
-                        boolean found = false;
-                        final TreeNode<GedcomLine> nodeNewTop = newLoad.getGedcom().getNode(top.getObject().getID());
-                        if (nodeNewTop != null) {
-                            System.err.println("    searching for new event under: " + nodeNewTop);
-                            for (final TreeNode<GedcomLine> newEvent : nodeNewTop) {
-                                final GedcomLine newEventGedcomLine = newEvent.getObject();
-                                if (newEventGedcomLine.getTag().equals(event.getObject().getTag())) {
-                                    final TreeNode<GedcomLine> newD = findDate(newEvent);
-                                    if (newD != null) {
-                                        System.err.println("    checking " + newD);
-                                        final GedcomLine newDateGedcomLine = newD.getObject();
-                                        if (newDateGedcomLine.getValue().equals(dsWant)) {
-                                            System.err.println("    found: " + newD);
-                                            newD.setObject(new GedcomLine(newDateGedcomLine.getLevel(), "", newDateGedcomLine.getTag().name(), ds));
-                                            System.err.println("    chngd: " + newD);
-                                            found = true;
-                                            break;
-                                        } else if (newDateGedcomLine.getValue().equals(ds)) {
-                                            // already in correct format; don't change anything
-                                            found = true;
-                                            break;
-                                        }
-                                    }
-                                }
+                        Log.debug("dateRangeToPeriodFor: {} | {} | {} | looking for: {}", top.getObject(), event, d, dsWant);
+                        if (!looked) {
+                            looked = true;
+                            final TreeNode<GedcomLine> nodeNewTop = counterpart(top, newRecords);
+                            if (nodeNewTop != null) {
+                                dates = views.dates(nodeNewTop);
                             }
                         }
-                        if (!found) {
-                            System.err.println("    NOT FOUND, for date: " + top.getObject() + " | " + event + " | " + d + " | looking for: " + dsWant);
+                        final EventDates.Result result = dates == null ? EventDates.Result.NOT_FOUND : dates.restore(tag, ds, dsWant);
+                        switch (result) {
+                            case CONVERTED:
+                                counts.cConverted.increment();
+                                phase.match();
+                                break;
+                            case CORRECT:
+                                counts.cCorrect.increment();
+                                phase.match();
+                                break;
+                            default:
+                                counts.cNotFound.increment();
+                                phase.miss();
+                                Log.warn("    NOT FOUND, for date: {} | {} | {} | looking for: {}", top.getObject(), event, d, dsWant);
+                                Log.report("not-found", "date", top.getObject().getID(), event.getObject().getTagString(), ds);
                         }
                     }
                 }
             }
-        });
+        }
     }
 
-    private static final Pattern DATE_FROMTO = Pattern.compile("FROM (.*) TO (.*)");
-    private static final Pattern DATE_FROM = Pattern.compile("FROM (.*)");
-    private static final Pattern DATE_TO = Pattern.compile("TO (.*)");
-
-    private static String cvtRangeToPeriod(final String dsRange) {
-        Matcher matcher;
-        if ((matcher = DATE_FROMTO.matcher(dsRange)).matches()) {
-            return "BET " + matcher.group(1) + " AND " + matcher.group(2);
-        } else if ((matcher = DATE_FROM.matcher(dsRange)).matches()) {
-            return "AFT " + matcher.group(1);
-        } else if ((matcher = DATE_TO.matcher(dsRange)).matches()) {
-            return "BEF " + matcher.group(1);
+    /*
+    Date ranges and periods are converted by their prefixes (without regular expressions).
+    As with greedy matching, the last " TO " (or " AND ") is the separator.
+     */
+    static String cvtRangeToPeriod(final String dsRange) {
+        if (dsRange.startsWith("FROM ")) {
+            final String rest = dsRange.substring(5);
+            final int to = rest.lastIndexOf(" TO ");
+            if (to >= 0) {
+                return "BET " + rest.substring(0, to) + " AND " + rest.substring(to + 4);
+            }
+            return "AFT " + rest;
+        } else if (dsRange.startsWith("TO ")) {
+            return "BEF " + dsRange.substring(3);
         } else {
-            System.err.println("Unexpected date format: " + dsRange);
+            Log.warn("Unexpected date format: {}", dsRange);
             return "ERROR";
         }
     }
 
-    private static final Pattern DATE_BET = Pattern.compile("BET (.*) AND (.*)");
-    private static final Pattern DATE_BEF = Pattern.compile("BEF (.*)");
-    private static final Pattern DATE_AFT = Pattern.compile("AFT (.*)");
-
     private static String cvtPeriodToRange(final String dsPeriod) {
-        Matcher matcher;
-        if ((matcher = DATE_BET.matcher(dsPeriod)).matches()) {
-            return "FROM " + matcher.group(1) + " TO " + matcher.group(2);
-        } else if ((matcher = DATE_AFT.matcher(dsPeriod)).matches()) {
-            return "FROM " + matcher.group(1);
-        } else if ((matcher = DATE_BEF.matcher(dsPeriod)).matches()) {
-            return "TO " + matcher.group(1);
-        } else {
-            System.err.println("Unexpected date format: " + dsPeriod);
-            return "ERROR";
+        if (dsPeriod.startsWith("BET ")) {
+            final String rest = dsPeriod.substring(4);
+            final int and = rest.lastIndexOf(" AND ");
+            if (and >= 0) {
+                return "FROM " + rest.substring(0, and) + " TO " + rest.substring(and + 5);
+            }
+        } else if (dsPeriod.startsWith("AFT ")) {
+            return "FROM " + dsPeriod.substring(4);
+        } else if (dsPeriod.startsWith("BEF ")) {
+            return "TO " + dsPeriod.substring(4);
         }
+        Log.warn("Unexpected date format: {}", dsPeriod);
+        return "ERROR";
     }
 
-    private static TreeNode<GedcomLine> findDate(final TreeNode<GedcomLine> event) {
-        for (final TreeNode<GedcomLine> c : event) {
-            if (c.getObject().getTag().equals(GedcomTag.DATE)) {
-                return c;
-            }
-        }
-        return null;
+    private TreeNode<GedcomLine> findDate(final TreeNode<GedcomLine> event) {
+        return views.of(event).first(GedcomTag.DATE);
     }
 
     /*
@@ -575,18 +1255,17 @@ class GedcomMatcher {
     Keep track of failed matches, and matches that are ambiguous. Ambiguous matches
     simply attach the NOTE to the *first* matched event.
      */
-    private static void note(final Loader oldLoad, final Loader newLoad) {
-        System.err.println();
-        System.err.println("------------------------------------------------------------");
-        System.err.println("Notes");
-        oldLoad.getGedcom().getRoot().forEach(top -> {
+    private void note(final RecordPass restore, final RecordLookup oldRecords, final RecordLookup newRecords, final List<ChildToBeAdded> added) {
+        restore.onStart(() -> Log.section("Notes"));
+        final Metrics.Phase phase = metrics.phase("note");
+        restore.onEach(top -> {
             top.forEach(item -> {
                 item.forEach(att -> {
                     final GedcomLine attLine = att.getObject();
                     if (attLine.getTag().equals(GedcomTag.NOTE)) {
-                        final TreeNode<GedcomLine> noteNode = oldLoad.getGedcom().getNode(attLine.getPointer());
+                        final TreeNode<GedcomLine> noteNode = oldRecords.getNode(attLine.getPointer());
                         if (noteNode != null) {
-                            addNoteTo(top, item, att, noteNode, newLoad);
+                            addNoteTo(top, item, att, noteNode, newRecords, added, phase);
                         }
                     }
                 });
@@ -594,39 +1273,41 @@ class GedcomMatcher {
         });
     }
 
-    private static void addNoteTo(TreeNode<GedcomLine> top, TreeNode<GedcomLine> item, TreeNode<GedcomLine> oldNoteRef, TreeNode<GedcomLine> noteNode, Loader newLoad) {
-        String id = top.getObject().getID();
-        if (mapReverseIds.containsKey(id)) {
-            id = mapReverseIds.get(id);
-        }
-        System.err.println("looking for: " + id + ": " + top.getObject() + " | " + item.getObject().getTag());
-        final TreeNode<GedcomLine> topNew = newLoad.getGedcom().getNode(id);
+    private void addNoteTo(TreeNode<GedcomLine> top, TreeNode<GedcomLine> item, TreeNode<GedcomLine> oldNoteRef, TreeNode<GedcomLine> noteNode, RecordLookup newRecords, List<ChildToBeAdded> added, Metrics.Phase phase) {
+        Log.debug("looking for: {}: {} | {}", top.getObject().getID(), top.getObject(), item.getObject().getTag());
+        final TreeNode<GedcomLine> topNew = counterpart(top, newRecords);
         int cFound = 0;
         if (topNew != null) {
-            for (final TreeNode<GedcomLine> itemNew : topNew) {
-                System.err.println("    checking:" + itemNew);
-                if (itemsMatch(item, itemNew, topNew)) {
+            for (final TreeNode<GedcomLine> itemNew : views.events(topNew).matches(item, views)) {
+                if (Log.isEnabled(Log.Level.DEBUG)) {
                     final String type = findChild(itemNew, GedcomTag.TYPE);
                     final String date = findChild(itemNew, GedcomTag.DATE);
                     final String place = findChild(itemNew, GedcomTag.PLAC);
-                    System.err.println("    found:" + itemNew + " "+ type + " " + date + " " + place);
-                    ++cFound;
-                    if (cFound == 1) {
-                        newNodes.add(new ChildToBeAdded(itemNew, new TreeNode<GedcomLine>(oldNoteRef.getObject())));
-                        newNodes.add(new ChildToBeAdded(newLoad.getGedcom().getRoot(), noteNode));
-                    }
+                    Log.debug("    found:{} {} {} {}", itemNew, type, date, place);
+                }
+                ++cFound;
+                if (cFound == 1) {
+                    queue(added, new ChildToBeAdded(itemNew, new TreeNode<GedcomLine>(oldNoteRef.getObject())));
+                    queue(added, new ChildToBeAdded(newRecords.getRoot(), noteNode));
                 }
             }
         }
         if (cFound == 0) {
-            System.err.println("    NOT FOUND, for note: " + top.getObject() + " | " + item.getObject().getTag() + " | " + noteNode.getObject());
-        } else if (cFound > 1) {
-            System.err.println("    MULTIPLE MATCHING EVENTS FOUND, for note: " + top.getObject() + " | " + item.getObject().getTag() + " | " + noteNode.getObject());
+            phase.miss();
+            Log.warn("    NOT FOUND, for note: {} | {} | {}", top.getObject(), item.getObject().getTag(), noteNode.getObject());
+            Log.report("not-found", "note", top.getObject().getID(), item.getObject().getTagString(), noteNode.getObject().getID());
+        } else {
+            phase.match();
+        }
+        if (cFound > 1) {
+            Log.warn("    MULTIPLE MATCHING EVENTS FOUND, for note: {} | {} | {}", top.getObject(), item.getObject().getTag(), noteNode.getObject());
+            Log.report("multiple", "note", top.getObject().getID(), item.getObject().getTagString(), noteNode.getObject().getID());
         }
     }
 
     // TODO: remove param topNew and use itemNew.getParent instead
-    private static boolean itemsMatch(TreeNode<GedcomLine> item, TreeNode<GedcomLine> itemNew, TreeNode<GedcomLine> topNew) {
+    // (note and quay restoration use EventIndex, which must stay consistent with this)
+    boolean itemsMatch(TreeNode<GedcomLine> item, TreeNode<GedcomLine> itemNew, TreeNode<GedcomLine> topNew) {
         final GedcomLine itemLine = item.getObject();
         final GedcomLine itemLineNew = itemNew.getObject();
 
@@ -682,81 +1363,48 @@ class GedcomMatcher {
         return false;
     }
 
-    private static boolean isUnique(final GedcomTag tag, final String even, final TreeNode<GedcomLine> obj) {
-        int cTag = 0;
-        for (final TreeNode<GedcomLine> c : obj) {
-            if (tag.equals(GedcomTag.EVEN)) {
-                final String typeNew = findChild(c, GedcomTag.TYPE).toLowerCase();
-                if (even.equals(typeNew)) {
-                    ++cTag;
-                    if (cTag > 1) {
-                        return false;
-                    }
-                }
-            } else if (c.getObject().getTag().equals(tag)) {
-                ++cTag;
-                if (cTag > 1) {
-                    return false;
-                }
-            }
-        }
-        return true;
+    boolean isUnique(final GedcomTag tag, final String even, final TreeNode<GedcomLine> obj) {
+        return EventIndex.isUnique(tag, even, obj, views);
     }
 
-    private static String findChild(final TreeNode<GedcomLine> item, final GedcomTag tag) {
-        return findChild(item, tag.toString());
+    /*
+    All child lookups go through the (cached) record views, which index
+    children by tag, rather than scanning the children each time.
+     */
+    private final RecordViews views;
+
+    private String findChild(final TreeNode<GedcomLine> item, final GedcomTag tag) {
+        return views.of(item).value(tag);
     }
 
-    private static String findChild(final TreeNode<GedcomLine> item, final String tag) {
-        for (final TreeNode<GedcomLine> c : item) {
-            final GedcomLine gedcomLine = c.getObject();
-            if (gedcomLine.getTagString().equals(tag)) {
-                return gedcomLine.isPointer() ? gedcomLine.getPointer() : gedcomLine.getValue();
-            }
-        }
-        return "";
+    private String findChild(final TreeNode<GedcomLine> item, final String customTag) {
+        return views.of(item).value(customTag);
     }
 
-    private static TreeNode<GedcomLine> findChildNode(final TreeNode<GedcomLine> item, final String tag) {
-        for (final TreeNode<GedcomLine> c : item) {
-            final GedcomLine gedcomLine = c.getObject();
-            if (gedcomLine.getTagString().equals(tag)) {
-                return c;
-            }
-        }
-        return null;
+    private TreeNode<GedcomLine> findChildNode(final TreeNode<GedcomLine> item, final String customTag) {
+        return views.of(item).first(customTag);
     }
 
-    private static TreeNode<GedcomLine> findChildNode(final TreeNode<GedcomLine> item, final GedcomTag tag) {
-        return findChildNode(item, tag.toString());
+    private TreeNode<GedcomLine> findChildNode(final TreeNode<GedcomLine> item, final GedcomTag tag) {
+        return views.of(item).first(tag);
     }
 
-    private static String getBirthYear(final TreeNode<GedcomLine> nodeIndi) {
-        String year = "";
-        for (final TreeNode<GedcomLine> c : nodeIndi) {
-            final GedcomLine gedcomLine = c.getObject();
-            if (gedcomLine.getTag().equals(GedcomTag.BIRT)) {
-                final String fullDate = findChild(c, GedcomTag.DATE);
-                if (!fullDate.isEmpty()) {
-                    try {
-                        final DatePeriod d = parse(fullDate);
-                        year = Integer.toString(d.getStartDate().getEarliest().getYear());
-                    } catch (final Throwable ignore) {
-                        year = "";
-                    }
-                }
+    private final YearResolver years;
+
+    /*
+    Year of the (last dated) BIRT event, or empty if none (or the date can't be parsed).
+     */
+    String getBirthYear(final TreeNode<GedcomLine> nodeIndi) {
+        final List<TreeNode<GedcomLine>> births = views.of(nodeIndi).children(GedcomTag.BIRT);
+        for (int i = births.size() - 1; i >= 0; --i) {
+            final String fullDate = findChild(births.get(i), GedcomTag.DATE);
+            if (!fullDate.isEmpty()) {
+                return years.year(fullDate);
             }
         }
-        return year;
+        return "";
     }
 
-    private static DatePeriod parse(final String s) throws ParseException, DateRange.DatesOutOfOrder
-    {
-        final GedcomDateValueParser parser = new GedcomDateValueParser(
-                new StringReader(s));
-
-        return parser.parse();
-    }
 //    private static String findChild(final TreeNode<GedcomLine> item, final String tag) {
 //        for (final TreeNode<GedcomLine> c : item) {
 //            final GedcomLine gedcomLine = c.getObject();
@@ -771,24 +1419,22 @@ class GedcomMatcher {
     All QUAY records are lost by Ancestry. Try to restore them from
     original.ged.
      */
-    private static void quay(final Loader oldLoad, final Loader newLoad) {
-        System.err.println();
-        System.err.println("------------------------------------------------------------");
-        System.err.println("Quality / _APID");
-        oldLoad.getGedcom().getRoot().forEach(top -> {
-            final GedcomLine topLine = top.getObject();
+    private void quay(final RecordPass restore, final RecordLookup newRecords, final List<ChildToBeAdded> added) {
+        restore.onStart(() -> Log.section("Quality / _APID"));
+        final Metrics.Phase phase = metrics.phase("quay");
+        restore.onEach(top -> {
             top.forEach(item -> {
                 item.forEach(att -> {
                     final GedcomLine attLine = att.getObject();
                     if (attLine.getTag().equals(GedcomTag.SOUR)) {
-                        addQuayTo(top, item, att, newLoad);
+                        addQuayTo(top, item, att, newRecords, added, phase);
                     }
                 });
             });
         });
     }
 
-    private static void addQuayTo(TreeNode<GedcomLine> top, TreeNode<GedcomLine> item, TreeNode<GedcomLine> att, Loader newLoad) {
+    private void addQuayTo(TreeNode<GedcomLine> top, TreeNode<GedcomLine> item, TreeNode<GedcomLine> att, RecordLookup newRecords, List<ChildToBeAdded> added, Metrics.Phase phase) {
         /*
             ORIGINAL oldLoad
             --------
@@ -818,55 +1464,33 @@ class GedcomMatcher {
                  2 SOUR @S87@  <-----------------------------attNew
                    3 QUAY 3   ++++++++++++++++++++++++++++
         */
-        TreeNode<GedcomLine> quay = null;
-        for (final TreeNode<GedcomLine> q : att) {
-            if (q.getObject().getTag().equals(GedcomTag.QUAY)) {
-                quay = q;
-                break;
-            }
-        }
-        TreeNode<GedcomLine> apid = null;
-        for (final TreeNode<GedcomLine> q : att) {
-            if (q.getObject().getTagString().equals("_APID")) {
-                apid = q;
-                break;
-            }
-        }
+        final TreeNode<GedcomLine> quay = findChildNode(att, GedcomTag.QUAY);
+        final TreeNode<GedcomLine> apid = findChildNode(att, "_APID");
         if (quay == null && apid == null) {
             return;
         }
 
-        String id = top.getObject().getID();
-        if (mapReverseIds.containsKey(id)) {
-            id = mapReverseIds.get(id);
-        }
-        System.err.println("looking for: " + id + ": " + top.getObject() + " | " + item.getObject().getTag() + " | " + att.getObject());
-        final TreeNode<GedcomLine> topNew = newLoad.getGedcom().getNode(id);
+        Log.debug("looking for: {}: {} | {} | {}", top.getObject().getID(), top.getObject(), item.getObject().getTag(), att.getObject());
+        final TreeNode<GedcomLine> topNew = counterpart(top, newRecords);
         int cFound = 0;
         if (topNew != null) {
-            for (final TreeNode<GedcomLine> itemNew : topNew) {
-                System.err.println("    checking:" + itemNew);
-                if (itemsMatch(item, itemNew, topNew)) {
-                    for (final TreeNode<GedcomLine> attNew : itemNew) {
-                        final GedcomLine gedcomLine = attNew.getObject();
-                        String newId = gedcomLine.getPointer();
-                        if (mapRemapIds.containsKey(newId)) {
-                            newId = mapRemapIds.get(newId);
-                        }
-                        if (gedcomLine.getTag().equals(GedcomTag.SOUR) && newId.equals(att.getObject().getPointer())) {
-                            System.err.println("    found:" + attNew);
-                            ++cFound;
-                            if (cFound == 1) {
-                                if (quay != null) {
-                                    newNodes.add(new ChildToBeAdded(attNew, quay));
-                                }
-                                if (apid != null) {
-                                    //!!!!!!!!!!!!!!!!!!!!!
-                                    // Need to be smarter about adding _APID here.
-                                    // 1. There could already be an _APID, so don't just add a new one.
-                                    // 2. There could be more than one citation to the same source.
-                                    newNodes.add(new ChildToBeAdded(attNew, apid));
-                                }
+            for (final TreeNode<GedcomLine> itemNew : views.events(topNew).matches(item, views)) {
+                for (final TreeNode<GedcomLine> attNew : views.of(itemNew).children(GedcomTag.SOUR)) {
+                    // NEW pointers have already been remapped to original IDs (by remapIds)
+                    final String newId = attNew.getObject().getPointer();
+                    if (newId.equals(att.getObject().getPointer())) {
+                        Log.debug("    found:{}", attNew);
+                        ++cFound;
+                        if (cFound == 1) {
+                            if (quay != null) {
+                                queue(added, new ChildToBeAdded(attNew, quay));
+                            }
+                            if (apid != null) {
+                                //!!!!!!!!!!!!!!!!!!!!!
+                                // Need to be smarter about adding _APID here.
+                                // 1. There could already be an _APID, so don't just add a new one.
+                                // 2. There could be more than one citation to the same source.
+                                queue(added, new ChildToBeAdded(attNew, apid));
                             }
                         }
                     }
@@ -874,12 +1498,22 @@ class GedcomMatcher {
             }
         }
         if (cFound == 0) {
-            System.err.println("    NOT FOUND, for "+(quay!=null?"quay":"")+","+(apid!=null?"apid":"")+": " + top.getObject() + " | " + item.getObject().getTag() + " | " + att.getObject());
-        } else if (cFound > 1) {
-            System.err.println("    MULTIPLE MATCHING EVENTS FOUND, for  "+(quay!=null?"quay":"")+","+(apid!=null?"apid":"")+": " + top.getObject() + " | " + item.getObject().getTag() + " | " + att.getObject());
+            phase.miss();
+            Log.warn("    NOT FOUND, for {}: {} | {} | {}", what(quay, apid), top.getObject(), item.getObject().getTag(), att.getObject());
+            Log.report("not-found", "quay", top.getObject().getID(), item.getObject().getTagString(), att.getObject().getPointer());
+        } else {
+            phase.match();
+        }
+        if (cFound > 1) {
+            Log.warn("    MULTIPLE MATCHING EVENTS FOUND, for  {}: {} | {} | {}", what(quay, apid), top.getObject(), item.getObject().getTag(), att.getObject());
+            Log.report("multiple", "quay", top.getObject().getID(), item.getObject().getTagString(), att.getObject().getPointer());
         }
     }
 
+    private static String what(final TreeNode<GedcomLine> quay, final TreeNode<GedcomLine> apid) {
+        return (quay!=null?"quay":"")+","+(apid!=null?"apid":"");
+    }
+
     static class ChildToBeAdded {
         TreeNode<GedcomLine> parent;
         TreeNode<GedcomLine> child;
@@ -891,14 +1525,31 @@ class GedcomMatcher {
             this.parent = parent; this.child = child; this.before = before;
         }
     }
-    private static final List<ChildToBeAdded> newNodes = new ArrayList<>(256);
-    private static void addNewNodes() {
+    private final List<ChildToBeAdded> newNodes = new ArrayList<>(256);
+    /*
+    Many of the new nodes come from OLD, which may be shared with other matchers
+    (in batch mode), so NEW always gets copies, never OLD's own nodes.
+     */
+    private void addNewNodes() {
+        metrics.phase("addNewNodes").timed(this::addNewNodesNow).run();
+    }
+
+    private void addNewNodesNow() {
         newNodes.forEach(a -> {
             if (a.before == null) {
-                a.parent.addChild(a.child);
+                a.parent.addChild(copyOf(a.child));
             } else {
-                a.parent.addChildBefore(a.child, a.before);
+                a.parent.addChildBefore(copyOf(a.child), a.before);
             }
         });
+        newNodes.clear();
+    }
+
+    private static TreeNode<GedcomLine> copyOf(final TreeNode<GedcomLine> node) {
+        final TreeNode<GedcomLine> copy = new TreeNode<>(node.getObject());
+        for (final TreeNode<GedcomLine> c : node) {
+            copy.addChild(copyOf(c));
+        }
+        return copy;
     }
 }
@@ -0,0 +1,292 @@
+package nu.mine.mosher.gedcom;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Generates a synthetic, consistent pair of GEDCOM files, of any size: OLD (as
+ * maintained locally) and NEW (the same data as exported again from Ancestry.com).
+ * NEW has the perturbations that the matcher is meant to undo:
+ * <ul>
+ *     <li>all record IDs renumbered</li>
+ *     <li>FROM/TO dates converted to BET/AFT/BEF</li>
+ *     <li>NOTE records (and pointers to them) dropped</li>
+ *     <li>QUAY and _APID dropped from citations</li>
+ *     <li>_XY dropped from INDIs, and _ROOT from the header</li>
+ * </ul>
+ * Output is deterministic for a given size and seed.
+ */
+final class GedcomPairGenerator {
+    public static void main(final String... args) throws IOException {
+        if (args.length < 3) {
+            throw new IllegalArgumentException("\n\nusage:\n    gedcom-pair-generator count-of-INDIs old.ged new.ged [seed]");
+        }
+        final int cIndi = Integer.parseInt(args[0]);
+        final long seed = args.length > 3 ? Long.parseLong(args[3]) : 1L;
+        try (
+            final Writer old = open(args[1]);
+            final Writer anc = open(args[2])) {
+            final Summary summary = generate(cIndi, seed, old, anc);
+            System.err.println(summary);
+        }
+    }
+
+    /**
+     * Counts of what was generated, and of the perturbations made in NEW.
+     */
+    static final class Summary {
+        int cIndi, cFam, cSour, cRepo, cObje, cNote;
+        int cDatesConverted, cNotesDropped, cQuaysDropped, cApidsDropped, cXysDropped;
+
+        @Override
+        public String toString() {
+            return "records: INDI=" + this.cIndi + ", FAM=" + this.cFam + ", SOUR=" + this.cSour + ", REPO=" + this.cRepo +
+                ", OBJE=" + this.cObje + ", NOTE=" + this.cNote + "\n" +
+                "NEW perturbations: IDs renumbered, dates converted=" + this.cDatesConverted + ", NOTEs dropped=" + this.cNotesDropped +
+                ", QUAYs dropped=" + this.cQuaysDropped + ", _APIDs dropped=" + this.cApidsDropped + ", _XYs dropped=" + this.cXysDropped;
+        }
+    }
+
+    private static final String[] GIVEN = {
+        "John", "William", "James", "George", "Charles", "Thomas", "Henry", "Joseph", "Samuel", "Edward",
+        "David", "Robert", "Benjamin", "Daniel", "Richard", "Frederick", "Albert", "Walter", "Harry", "Frank",
+        "Mary", "Elizabeth", "Sarah", "Anna", "Margaret", "Catherine", "Jane", "Ellen", "Martha", "Emma",
+        "Alice", "Hannah", "Susan", "Ann", "Lydia", "Abigail", "Rebecca", "Clara", "Harriet", "Louisa"
+    };
+    private static final String[] SURNAME_HEAD = {
+        "Ash", "Bar", "Bell", "Brad", "Cald", "Carl", "Dal", "Dun", "Ed", "Fair", "Gar", "Hal", "Har", "Hol",
+        "Kel", "Lang", "Mar", "Mil", "Mor", "New", "Pem", "Rad", "Ros", "Shel", "Stan", "Thorn", "Wal", "Win"
+    };
+    private static final String[] SURNAME_TAIL = {
+        "ton", "ley", "wood", "son", "er", "field", "ford", "well", "by", "more", "ham", "ridge", "man", "worth"
+    };
+    private static final String[] MONTH = {
+        "JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC"
+    };
+    private static final String[] STATE = {
+        "Connecticut", "Massachusetts", "New York", "Pennsylvania", "Vermont", "Ohio", "Virginia", "Maine"
+    };
+
+    private final long seed;
+    private final int cIndi, cFam, cSour, cRepo, cObje;
+    private final PrintWriter old;
+    private final PrintWriter anc;
+    private final Summary summary = new Summary();
+    private int cNote;
+
+    private GedcomPairGenerator(final int cIndi, final long seed, final Writer old, final Writer anc) {
+        this.seed = seed;
+        this.cIndi = cIndi;
+        this.cFam = cIndi / 2;
+        this.cSour = Math.max(1, cIndi / 10);
+        this.cRepo = Math.max(1, cIndi / 1000);
+        this.cObje = Math.max(1, cIndi / 20);
+        this.old = new PrintWriter(old);
+        this.anc = new PrintWriter(anc);
+    }
+
+    /**
+     * Writes a consistent OLD/NEW pair with the given number of INDIs.
+     */
+    static Summary generate(final int cIndi, final long seed, final Writer old, final Writer anc) throws IOException {
+        final GedcomPairGenerator gen = new GedcomPairGenerator(cIndi, seed, old, anc);
+        gen.generate();
+        return gen.summary;
+    }
+
+    private static Writer open(final String filename) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    private void generate() throws IOException {
+        both("0 HEAD");
+        both("1 SOUR GEDCOM_PAIR_GENERATOR");
+        both("1 GEDC");
+        both("2 VERS 5.5.1");
+        both("2 FORM LINEAGE-LINKED");
+        both("1 CHAR UTF-8");
+        if (this.cIndi > 0) {
+            this.old.println("1 _ROOT @" + oldId('I', 0) + "@");
+        }
+
+        for (int i = 0; i < this.cIndi; ++i) {
+            indi(i);
+        }
+        for (int i = 0; i < this.cFam; ++i) {
+            fam(i);
+        }
+        for (int i = 0; i < this.cSour; ++i) {
+            both("0 @" + oldId('S', i) + "@ SOUR", "0 @" + newId('S', i, this.cSour) + "@ SOUR");
+            both("1 TITL " + sourceTitle(i));
+            both("1 REPO @" + oldId('R', i % this.cRepo) + "@", "1 REPO @" + newId('R', i % this.cRepo, this.cRepo) + "@");
+        }
+        for (int i = 0; i < this.cRepo; ++i) {
+            both("0 @" + oldId('R', i) + "@ REPO", "0 @" + newId('R', i, this.cRepo) + "@ REPO");
+            both("1 NAME " + STATE[i % STATE.length] + " Archive " + i);
+        }
+        for (int i = 0; i < this.cObje; ++i) {
+            both("0 @" + oldId('O', i) + "@ OBJE", "0 @" + newId('O', i, this.cObje) + "@ OBJE");
+            both("1 FILE media/photo" + i + ".jpg");
+            both("2 FORM jpg");
+            both("2 TITL Photograph " + i);
+        }
+        for (int i = 0; i < this.cNote; ++i) {
+            this.old.println("0 @" + oldId('T', i) + "@ NOTE Research note " + i + ": this residence is given in a city directory,");
+            this.old.println("1 CONC  and confirmed by the census taken the same decade.");
+            ++this.summary.cNotesDropped;
+        }
+        both("0 TRLR");
+
+        this.summary.cIndi = this.cIndi;
+        this.summary.cFam = this.cFam;
+        this.summary.cSour = this.cSour;
+        this.summary.cRepo = this.cRepo;
+        this.summary.cObje = this.cObje;
+        this.summary.cNote = this.cNote;
+
+        this.old.flush();
+        this.anc.flush();
+        if (this.old.checkError() || this.anc.checkError()) {
+            throw new IOException("Error writing generated GEDCOM files.");
+        }
+    }
+
+    private void indi(final int i) {
+        final Random rnd = new Random(this.seed * 1_000_003L + i);
+        final boolean male = i % 2 == 0;
+        final int birthYear = 1700 + rnd.nextInt(300);
+
+        both("0 @" + oldId('I', i) + "@ INDI", "0 @" + newId('I', i, this.cIndi) + "@ INDI");
+        both("1 NAME " + GIVEN[(male ? 0 : GIVEN.length / 2) + rnd.nextInt(GIVEN.length / 2)] + " /" + surname(i / 2) + "/");
+        both("1 SEX " + (male ? "M" : "F"));
+
+        both("1 BIRT");
+        both("2 DATE " + date(rnd, birthYear));
+        both("2 PLAC " + place(rnd));
+        citation(rnd, 2);
+
+        final int resiYear = birthYear + 20 + rnd.nextInt(30);
+        both("1 RESI");
+        switch (rnd.nextInt(3)) {
+            case 0:
+                final int toYear = resiYear + 1 + rnd.nextInt(10);
+                both("2 DATE FROM " + resiYear + " TO " + toYear, "2 DATE BET " + resiYear + " AND " + toYear);
+                break;
+            case 1:
+                both("2 DATE FROM " + resiYear, "2 DATE AFT " + resiYear);
+                break;
+            default:
+                both("2 DATE TO " + resiYear, "2 DATE BEF " + resiYear);
+                break;
+        }
+        ++this.summary.cDatesConverted;
+        both("2 PLAC " + place(rnd));
+        if (rnd.nextInt(10) < 3) {
+            this.old.println("2 NOTE @" + oldId('T', this.cNote++) + "@");
+        }
+        citation(rnd, 2);
+
+        if (rnd.nextInt(4) == 0) {
+            both("1 EVEN");
+            both("2 TYPE Military");
+            both("2 DATE " + (birthYear + 18 + rnd.nextInt(10)));
+        }
+        if (rnd.nextInt(2) == 0) {
+            both("1 DEAT");
+            both("2 DATE " + date(rnd, birthYear + 40 + rnd.nextInt(50)));
+            both("2 PLAC " + place(rnd));
+        }
+        if (i < this.cObje) {
+            both("1 OBJE @" + oldId('O', i) + "@", "1 OBJE @" + newId('O', i, this.cObje) + "@");
+        }
+        if (i / 2 < this.cFam) {
+            both("1 FAMS @" + oldId('F', i / 2) + "@", "1 FAMS @" + newId('F', i / 2, this.cFam) + "@");
+        }
+        if (rnd.nextInt(3) == 0) {
+            this.old.println("1 _XY " + (30 + rnd.nextInt(15)) + "." + rnd.nextInt(1000) + " -" + (70 + rnd.nextInt(20)) + "." + rnd.nextInt(1000));
+            ++this.summary.cXysDropped;
+        }
+    }
+
+    private void fam(final int i) {
+        final Random rnd = new Random(~this.seed * 1_000_003L + i);
+        both("0 @" + oldId('F', i) + "@ FAM", "0 @" + newId('F', i, this.cFam) + "@ FAM");
+        both("1 HUSB @" + oldId('I', 2 * i) + "@", "1 HUSB @" + newId('I', 2 * i, this.cIndi) + "@");
+        both("1 WIFE @" + oldId('I', 2 * i + 1) + "@", "1 WIFE @" + newId('I', 2 * i + 1, this.cIndi) + "@");
+        both("1 MARR");
+        final int year = 1720 + rnd.nextInt(300);
+        if (rnd.nextInt(4) == 0) {
+            this.old.println("2 DATE FROM " + year);
+            this.anc.println("2 DATE AFT " + year);
+            ++this.summary.cDatesConverted;
+        } else {
+            both("2 DATE " + date(rnd, year));
+        }
+        both("2 PLAC " + place(rnd));
+    }
+
+    private void citation(final Random rnd, final int level) {
+        final int s = rnd.nextInt(this.cSour);
+        both(level + " SOUR @" + oldId('S', s) + "@", level + " SOUR @" + newId('S', s, this.cSour) + "@");
+        both((level + 1) + " PAGE p. " + (1 + rnd.nextInt(400)));
+        this.old.println((level + 1) + " QUAY " + rnd.nextInt(4));
+        ++this.summary.cQuaysDropped;
+        this.old.println((level + 1) + " _APID 1," + (7000 + s % 1000) + "::" + (1000000 + rnd.nextInt(9000000)));
+        ++this.summary.cApidsDropped;
+    }
+
+    private static String date(final Random rnd, final int year) {
+        switch (rnd.nextInt(4)) {
+            case 0: return (1 + rnd.nextInt(28)) + " " + MONTH[rnd.nextInt(12)] + " " + year;
+            case 1: return MONTH[rnd.nextInt(12)] + " " + year;
+            case 2: return "ABT " + year;
+            default: return Integer.toString(year);
+        }
+    }
+
+    private static String place(final Random rnd) {
+        return surname(rnd.nextInt(400)) + "ville, " + surname(rnd.nextInt(100)) + " County, " + STATE[rnd.nextInt(STATE.length)];
+    }
+
+    private static String surname(final int i) {
+        final int cHead = SURNAME_HEAD.length;
+        final int cTail = SURNAME_TAIL.length;
+        final String base = SURNAME_HEAD[i % cHead] + SURNAME_TAIL[(i / cHead) % cTail];
+        final int generation = i / (cHead * cTail);
+        return generation == 0 ? base : base + SURNAME_TAIL[generation % cTail];
+    }
+
+    private static String sourceTitle(final int i) {
+        return STATE[i % STATE.length] + ", " + surname(i) + " Town Records, Volume " + (i / STATE.length + 1);
+    }
+
+    private static String oldId(final char prefix, final int i) {
+        return prefix + Integer.toString(i + 1);
+    }
+
+    /*
+    Ancestry renumbers records. Use a permutation of the same range of numbers,
+    so that an old ID usually names a different record in NEW.
+     */
+    private static String newId(final char prefix, final int i, final int count) {
+        int multiplier = 7919;
+        while (gcd(multiplier, count) != 1) {
+            multiplier += 2;
+        }
+        return prefix + Long.toString(((long)i * multiplier + 1) % count + 1);
+    }
+
+    private static int gcd(final int a, final int b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    private void both(final String line) {
+        both(line, line);
+    }
+
+    private void both(final String lineOld, final String lineNew) {
+        this.old.println(lineOld);
+        this.anc.println(lineNew);
+    }
+}
@@ -0,0 +1,358 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.collection.TreeNode;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * What a run changes in NEW, written as a patch instead of as the whole merged file.
+ * Applying the patch to NEW (streaming NEW one record at a time) gives exactly the
+ * file the run would have written.
+ *
+ * The patch is UTF-8 text (gzipped if its name ends with .gz), in this order:
+ * <pre>
+ * GEDCOM-PATCH 1 sha256-of-NEW
+ * R exported-id old-id                  (an ID of NEW changed back to OLD's ID)
+ * S record path line                    (a line of NEW replaced)
+ * A record parent-path before-path n    (a subtree added; its n lines follow)
+ * </pre>
+ * Records are numbered from 0, in NEW's order. A path is the indexes (from 0, with
+ * CONC and CONT lines joined into their parents) of the children leading from the
+ * record to the node, separated by dots, or "-" for the record itself (or, as the
+ * before-path, for adding at the end). Record "*" is the root: its subtrees are new
+ * top-level records, written after all of NEW's records. Lines are in GEDCOM form,
+ * with backslash, CR, and LF in values escaped as \\, \r, and \n.
+ *
+ * When applying, IDs are remapped first, then each record's lines replaced, then its
+ * subtrees added; paths always refer to NEW as exported.
+ *
+ * NEW must be UTF-8 (by its BOM and HEAD.CHAR): it is read one record at a time by
+ * {@link GedcomRecordReader}, which reads only UTF-8, both to write a patch (against
+ * NEW as gedcom-lib read it) and to apply one.
+ */
+final class GedcomPatch {
+    private static final String MAGIC = "GEDCOM-PATCH 1";
+
+    private GedcomPatch() {
+        throw new IllegalStateException();
+    }
+
+    private static final class Address {
+        final int record;
+        final String path;
+
+        Address(final int record, final String path) {
+            this.record = record;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Fails unless NEW is UTF-8 (checked before merging, so as not to merge for nothing).
+     */
+    static void checkCharset(final String newFilename) throws IOException {
+        final String charset;
+        try (final InputStream in = FileInput.open(newFilename)) {
+            charset = GedcomRecordReader.charset(in);
+        }
+        if (!GedcomRecordReader.isUtf8(charset)) {
+            throw new IOException("Cannot patch a file that is not UTF-8: " + newFilename + " (CHAR " + charset + ")");
+        }
+    }
+
+    /**
+     * Writes the patch for NEW, as changed by a matcher (see {@link GedcomMatcher#patching}).
+     * @param newFilename NEW, as exported (read again, to find the lines that were changed)
+     * @param newRoot NEW, as changed in place (but with nothing added yet)
+     * @param added the nodes still to be added to NEW
+     * @param remappedIds NEW's IDs that were changed back to OLD's
+     */
+    static void write(final String newFilename, final TreeNode<GedcomLine> newRoot, final List<GedcomMatcher.ChildToBeAdded> added, final Map<String, String> remappedIds, final String patchFilename) throws IOException {
+        final Set<TreeNode<GedcomLine>> referenced = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (final GedcomMatcher.ChildToBeAdded a : added) {
+            if (a.parent != newRoot) {
+                referenced.add(a.parent);
+            }
+            if (a.before != null) {
+                referenced.add(a.before);
+            }
+        }
+
+        final Map<TreeNode<GedcomLine>, Address> addresses = new IdentityHashMap<>();
+        final Map<Integer, List<String>> ops = new TreeMap<>();
+        final IdRemapper remapper = new IdRemapper(remappedIds);
+        int cReplaced = 0;
+        try (final GedcomRecordReader in = new GedcomRecordReader(FileInput.open(newFilename))) {
+            int record = 0;
+            for (final TreeNode<GedcomLine> top : newRoot) {
+                final TreeNode<GedcomLine> exported = in.next();
+                if (exported == null) {
+                    throw new IllegalStateException("NEW has more records than " + newFilename);
+                }
+                remapper.remap(exported);
+                final List<String> recordOps = new ArrayList<>();
+                diff(top, exported, record, "-", referenced, addresses, recordOps);
+                if (!recordOps.isEmpty()) {
+                    ops.put(record, recordOps);
+                    cReplaced += recordOps.size();
+                }
+                ++record;
+            }
+            if (in.next() != null) {
+                throw new IllegalStateException("NEW has fewer records than " + newFilename);
+            }
+        }
+
+        final List<String> appended = new ArrayList<>();
+        for (final GedcomMatcher.ChildToBeAdded a : added) {
+            final List<String> target;
+            final StringBuilder op = new StringBuilder(64).append("A ");
+            if (a.parent == newRoot) {
+                target = appended;
+                op.append("* - -");
+            } else {
+                final Address parent = addresses.get(a.parent);
+                target = ops.computeIfAbsent(parent.record, k -> new ArrayList<>());
+                op.append(parent.record).append(' ').append(parent.path).append(' ');
+                op.append(a.before == null ? "-" : addresses.get(a.before).path);
+            }
+            final List<String> lines = new ArrayList<>();
+            lines(a.child, lines);
+            target.add(op.append(' ').append(lines.size()).toString());
+            target.addAll(lines);
+        }
+
+        try (final Writer out = new BufferedWriter(new OutputStreamWriter(FileOutput.open(patchFilename, false), StandardCharsets.UTF_8), 1 << 16)) {
+            out.write(MAGIC + " " + FileInput.hex(FileInput.sha256(newFilename)) + "\n");
+            for (final Map.Entry<String, String> remap : new TreeMap<>(remappedIds).entrySet()) {
+                out.write("R " + remap.getKey() + " " + remap.getValue() + "\n");
+            }
+            for (final List<String> recordOps : ops.values()) {
+                for (final String op : recordOps) {
+                    out.write(op);
+                    out.write('\n');
+                }
+            }
+            for (final String op : appended) {
+                out.write(op);
+                out.write('\n');
+            }
+        }
+        Log.info("Patch: {} IDs remapped, {} lines replaced, {} subtrees added; written to {}.", remappedIds.size(), cReplaced, added.size(), patchFilename);
+    }
+
+    /*
+    NEW as changed, against NEW as exported (with IDs remapped), which must still have
+    the same structure.
+     */
+    private static void diff(final TreeNode<GedcomLine> node, final TreeNode<GedcomLine> exported, final int record, final String path,
+                             final Set<TreeNode<GedcomLine>> referenced, final Map<TreeNode<GedcomLine>, Address> addresses, final List<String> ops) {
+        if (referenced.contains(node)) {
+            addresses.put(node, new Address(record, path));
+        }
+        final String line = format(node.getObject());
+        if (!line.equals(format(exported.getObject()))) {
+            ops.add("S " + record + " " + path + " " + line);
+        }
+        final Iterator<TreeNode<GedcomLine>> iChild = node.children();
+        final Iterator<TreeNode<GedcomLine>> iExported = exported.children();
+        int i = 0;
+        while (iChild.hasNext() && iExported.hasNext()) {
+            diff(iChild.next(), iExported.next(), record, path.equals("-") ? Integer.toString(i) : path + "." + i, referenced, addresses, ops);
+            ++i;
+        }
+        if (iChild.hasNext() || iExported.hasNext()) {
+            throw new IllegalStateException("NEW does not match its file, at record " + record + ", " + path);
+        }
+    }
+
+    private static void lines(final TreeNode<GedcomLine> node, final List<String> lines) {
+        lines.add(format(node.getObject()));
+        for (final TreeNode<GedcomLine> c : node) {
+            lines(c, lines);
+        }
+    }
+
+    /**
+     * Applies a patch to NEW, writing the result.
+     */
+    static void apply(final String patchFilename, final String newFilename, final GedcomRecordWriter out) throws IOException {
+        checkCharset(newFilename);
+        final Map<String, String> remappedIds = new IdMap();
+        final Map<Integer, List<String[]>> ops = new HashMap<>();
+        final Map<String[], TreeNode<GedcomLine>> subtrees = new IdentityHashMap<>();
+        final List<TreeNode<GedcomLine>> appended = new ArrayList<>();
+
+        try (final BufferedReader in = new BufferedReader(new InputStreamReader(FileInput.open(patchFilename), StandardCharsets.UTF_8), 1 << 16)) {
+            final String header = in.readLine();
+            if (header == null || !header.startsWith(MAGIC + " ")) {
+                throw new IOException("Not a GEDCOM patch: " + patchFilename);
+            }
+            if (!header.substring(MAGIC.length() + 1).equals(FileInput.hex(FileInput.sha256(newFilename)))) {
+                throw new IOException("Patch " + patchFilename + " is not for " + newFilename + " (or the file has changed).");
+            }
+            for (String s = in.readLine(); s != null; s = in.readLine()) {
+                if (s.startsWith("R ")) {
+                    final String[] f = s.split(" ", 3);
+                    remappedIds.put(f[1], f[2]);
+                } else if (s.startsWith("S ")) {
+                    final String[] f = s.split(" ", 4);
+                    ops.computeIfAbsent(Integer.valueOf(f[1]), k -> new ArrayList<>()).add(f);
+                } else if (s.startsWith("A ")) {
+                    final String[] f = s.split(" ", 5);
+                    final TreeNode<GedcomLine> subtree = subtree(in, Integer.parseInt(f[4]), patchFilename);
+                    if (f[1].equals("*")) {
+                        appended.add(subtree);
+                    } else {
+                        ops.computeIfAbsent(Integer.valueOf(f[1]), k -> new ArrayList<>()).add(f);
+                        subtrees.put(f, subtree);
+                    }
+                } else if (!s.isEmpty()) {
+                    throw new IOException("Invalid line in patch " + patchFilename + ": " + s);
+                }
+            }
+        }
+
+        final IdRemapper remapper = new IdRemapper(remappedIds);
+        int record = 0;
+        try (final GedcomRecordReader in = new GedcomRecordReader(FileInput.open(newFilename))) {
+            for (TreeNode<GedcomLine> top = in.next(); top != null; top = in.next()) {
+                remapper.remap(top);
+                final List<String[]> recordOps = ops.remove(record);
+                if (recordOps != null) {
+                    apply(top, recordOps, subtrees, record);
+                }
+                out.write(top);
+                ++record;
+            }
+        }
+        if (!ops.isEmpty()) {
+            throw new IOException("Patch " + patchFilename + " changes records not in " + newFilename + ": " + new TreeSet<>(ops.keySet()));
+        }
+        for (final TreeNode<GedcomLine> top : appended) {
+            out.write(top);
+        }
+        out.flush();
+        Log.info("Patch: applied {} to {} ({} records).", patchFilename, newFilename, record);
+    }
+
+    /*
+    All paths are found before anything is added, because they refer to the record as exported.
+     */
+    private static void apply(final TreeNode<GedcomLine> top, final List<String[]> ops, final Map<String[], TreeNode<GedcomLine>> subtrees, final int record) throws IOException {
+        final List<TreeNode<GedcomLine>> parents = new ArrayList<>(ops.size());
+        final List<TreeNode<GedcomLine>> befores = new ArrayList<>(ops.size());
+        for (final String[] op : ops) {
+            parents.add(node(top, op[2], record));
+            befores.add(op[0].equals("A") && !op[3].equals("-") ? node(top, op[3], record) : null);
+        }
+        for (int i = 0; i < ops.size(); ++i) {
+            final String[] op = ops.get(i);
+            if (op[0].equals("S")) {
+                parents.get(i).setObject(parse(op[3]));
+            } else if (befores.get(i) == null) {
+                parents.get(i).addChild(subtrees.get(op));
+            } else {
+                parents.get(i).addChildBefore(subtrees.get(op), befores.get(i));
+            }
+        }
+    }
+
+    private static TreeNode<GedcomLine> node(final TreeNode<GedcomLine> top, final String path, final int record) throws IOException {
+        TreeNode<GedcomLine> node = top;
+        if (path.equals("-")) {
+            return node;
+        }
+        for (final String index : path.split("\\.")) {
+            final Iterator<TreeNode<GedcomLine>> iChild = node.children();
+            for (int i = Integer.parseInt(index); i > 0 && iChild.hasNext(); --i) {
+                iChild.next();
+            }
+            if (!iChild.hasNext()) {
+                throw new IOException("Patch does not match NEW, at record " + record + ", " + path);
+            }
+            node = iChild.next();
+        }
+        return node;
+    }
+
+    private static TreeNode<GedcomLine> subtree(final BufferedReader in, final int cLines, final String patchFilename) throws IOException {
+        final Deque<TreeNode<GedcomLine>> stack = new ArrayDeque<>();
+        TreeNode<GedcomLine> subtree = null;
+        for (int i = 0; i < cLines; ++i) {
+            final String s = in.readLine();
+            if (s == null) {
+                throw new IOException("Patch " + patchFilename + " ends in the middle of a subtree.");
+            }
+            final TreeNode<GedcomLine> node = new TreeNode<>(parse(s));
+            final int level = node.getObject().getLevel();
+            while (!stack.isEmpty() && stack.peek().getObject().getLevel() >= level) {
+                stack.pop();
+            }
+            if (stack.isEmpty()) {
+                if (subtree != null) {
+                    throw new IOException("Invalid subtree in patch " + patchFilename + ": " + s);
+                }
+                subtree = node;
+            } else {
+                stack.peek().addChild(node);
+            }
+            stack.push(node);
+        }
+        return subtree;
+    }
+
+    private static String format(final GedcomLine line) {
+        if (line == null) {
+            return "";
+        }
+        final StringBuilder s = new StringBuilder(64).append(line.getLevel());
+        if (line.hasID()) {
+            s.append(" @").append(line.getID()).append('@');
+        }
+        s.append(' ').append(line.getTagString());
+        final String value = line.isPointer() ? "@" + line.getPointer() + "@" : line.getValue();
+        if (!value.isEmpty()) {
+            s.append(' ');
+            for (int i = 0; i < value.length(); ++i) {
+                final char c = value.charAt(i);
+                switch (c) {
+                    case '\\': s.append("\\\\"); break;
+                    case '\n': s.append("\\n"); break;
+                    case '\r': s.append("\\r"); break;
+                    default: s.append(c);
+                }
+            }
+        }
+        return s.toString();
+    }
+
+    private static GedcomLine parse(final String s) {
+        final int afterLevel = s.indexOf(' ');
+        final int level = Integer.parseInt(s.substring(0, afterLevel));
+        int start = afterLevel + 1;
+        String id = "";
+        if (s.startsWith("@", start)) {
+            final int afterId = s.indexOf(' ', start);
+            id = s.substring(start, afterId);
+            start = afterId + 1;
+        }
+        final int afterTag = s.indexOf(' ', start);
+        final String tag = afterTag < 0 ? s.substring(start) : s.substring(start, afterTag);
+        final StringBuilder value = new StringBuilder();
+        if (afterTag >= 0) {
+            for (int i = afterTag + 1; i < s.length(); ++i) {
+                final char c = s.charAt(i);
+                if (c == '\\' && i + 1 < s.length()) {
+                    final char e = s.charAt(++i);
+                    value.append(e == 'n' ? '\n' : e == 'r' ? '\r' : e);
+                } else {
+                    value.append(c);
+                }
+            }
+        }
+        return new GedcomLine(level, id, tag, value.toString());
+    }
+}
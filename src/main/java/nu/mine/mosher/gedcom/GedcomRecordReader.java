@@ -0,0 +1,196 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.collection.TreeNode;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Reads a GEDCOM file one top-level (0-level) record at a time, without building
+ * a tree of the whole file. CONC and CONT lines are concatenated into the values of
+ * their parent lines (as {@link GedcomConcatenator} does for a whole tree).
+ *
+ * The input is expected to be UTF-8 (or ASCII), which is what Family Tree Maker
+ * and Ancestry.com export. (Unlike gedcom-lib, it does not read the character set
+ * the file declares; see {@link #charset}.)
+ *
+ * If the records are kept (rather than streamed through), a {@link StringPool} can be
+ * given, to share repeated tags and values among them.
+ */
+final class GedcomRecordReader implements Closeable {
+    private static final class RawLine {
+        final int level;
+        final String id;
+        final String tag;
+        final StringBuilder value;
+        RawLine(final int level, final String id, final String tag, final String value) {
+            this.level = level; this.id = id; this.tag = tag; this.value = new StringBuilder(value);
+        }
+    }
+
+    private final BufferedReader in;
+    private final StringPool pool;
+    private RawLine pending;
+    private int cLine;
+    private boolean first = true;
+
+    GedcomRecordReader(final InputStream in) {
+        this(in, null);
+    }
+
+    GedcomRecordReader(final InputStream in, final StringPool pool) {
+        this.in = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+        this.pool = pool;
+    }
+
+    /**
+     * The character set a GEDCOM file declares: UNICODE if it starts with a UTF-16 BOM,
+     * otherwise the CHAR of its HEAD (or "none").
+     * @param in the file (which is read only up to the end of its HEAD, and closed)
+     */
+    static String charset(final InputStream in) throws IOException {
+        try (final BufferedInputStream bom = new BufferedInputStream(in, 2);
+             final GedcomRecordReader reader = new GedcomRecordReader(bom)) {
+            bom.mark(2);
+            final int b = (bom.read() << 8) | bom.read();
+            if (b == 0xFEFF || b == 0xFFFE) {
+                return "UNICODE";
+            }
+            bom.reset();
+            final TreeNode<GedcomLine> head = reader.next();
+            if (head != null && head.getObject().getTag().equals(GedcomTag.HEAD)) {
+                for (final TreeNode<GedcomLine> item : head) {
+                    if (item.getObject().getTag().equals(GedcomTag.CHAR)) {
+                        return item.getObject().getValue().trim();
+                    }
+                }
+            }
+            return "none";
+        }
+    }
+
+    static boolean isUtf8(final String charset) {
+        return charset.equalsIgnoreCase("UTF-8") || charset.equalsIgnoreCase("UTF8");
+    }
+
+    /**
+     * @return the next top-level record, or null at end of file
+     */
+    TreeNode<GedcomLine> next() throws IOException {
+        final List<RawLine> lines = new ArrayList<>(32);
+        if (this.pending != null) {
+            lines.add(this.pending);
+            this.pending = null;
+        }
+        RawLine line;
+        while ((line = readLine()) != null) {
+            if (line.level == 0 && !lines.isEmpty()) {
+                this.pending = line;
+                break;
+            }
+            lines.add(line);
+        }
+        return lines.isEmpty() ? null : build(lines, this.pool);
+    }
+
+    private RawLine readLine() throws IOException {
+        String s;
+        do {
+            s = this.in.readLine();
+            if (s == null) {
+                return null;
+            }
+            ++this.cLine;
+            if (this.first) {
+                this.first = false;
+                if (s.startsWith("\uFEFF")) {
+                    s = s.substring(1);
+                }
+            }
+        } while (s.trim().isEmpty());
+        return parse(s);
+    }
+
+    private RawLine parse(final String s) throws IOException {
+        int i = 0;
+        final int n = s.length();
+        while (i < n && Character.isWhitespace(s.charAt(i))) {
+            ++i;
+        }
+        final int startLevel = i;
+        while (i < n && Character.isDigit(s.charAt(i))) {
+            ++i;
+        }
+        if (i == startLevel || i >= n || s.charAt(i) != ' ') {
+            throw new IOException("Invalid GEDCOM line " + this.cLine + ": " + s);
+        }
+        final int level = Integer.parseInt(s.substring(startLevel, i));
+        ++i;
+
+        String id = "";
+        if (i < n && s.charAt(i) == '@') {
+            final int endId = s.indexOf("@ ", i + 1);
+            if (endId < 0) {
+                throw new IOException("Invalid GEDCOM ID on line " + this.cLine + ": " + s);
+            }
+            id = s.substring(i, endId + 1);
+            i = endId + 2;
+        }
+
+        final int startTag = i;
+        while (i < n && s.charAt(i) != ' ') {
+            ++i;
+        }
+        if (i == startTag) {
+            throw new IOException("Missing GEDCOM tag on line " + this.cLine + ": " + s);
+        }
+        final String tag = s.substring(startTag, i);
+        final String value = i < n ? s.substring(i + 1) : "";
+
+        return new RawLine(level, id, tag, value);
+    }
+
+    private static TreeNode<GedcomLine> build(final List<RawLine> lines, final StringPool pool) {
+        /* fold CONC/CONT lines into the line they continue */
+        final List<RawLine> merged = new ArrayList<>(lines.size());
+        RawLine prev = null;
+        for (final RawLine line : lines) {
+            if (prev != null && line.level == prev.level + 1 && line.tag.equals("CONC")) {
+                prev.value.append(line.value);
+            } else if (prev != null && line.level == prev.level + 1 && line.tag.equals("CONT")) {
+                prev.value.append('\n').append(line.value);
+            } else {
+                merged.add(line);
+                prev = line;
+            }
+        }
+
+        final Deque<TreeNode<GedcomLine>> stack = new ArrayDeque<>();
+        TreeNode<GedcomLine> top = null;
+        for (final RawLine line : merged) {
+            final String value = line.value.toString();
+            final TreeNode<GedcomLine> node = new TreeNode<>(pool == null
+                ? new GedcomLine(line.level, line.id, line.tag, value)
+                : new GedcomLine(line.level, line.id, pool.share(line.tag), line.id.isEmpty() ? pool.share(value) : value));
+            while (!stack.isEmpty() && stack.peek().getObject().getLevel() >= line.level) {
+                stack.pop();
+            }
+            if (stack.isEmpty() && top == null) {
+                top = node;
+            } else if (stack.isEmpty()) {
+                // malformed level; attach it to the record anyway, so nothing is lost
+                top.addChild(node);
+            } else {
+                stack.peek().addChild(node);
+            }
+            stack.push(node);
+        }
+        return top;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.in.close();
+    }
+}
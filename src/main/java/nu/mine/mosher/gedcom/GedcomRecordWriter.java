@@ -0,0 +1,117 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.collection.TreeNode;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes GEDCOM records (a node and all its descendants) as UTF-8 lines.
+ * Values are split into CONT lines at newlines, and into CONC lines when
+ * longer than the maximum length, while they are written (so the tree does
+ * not need to be unconcatenated first).
+ *
+ * Lines come out as gedcom-lib writes them after {@link GedcomUnconcatenator}:
+ * CONC splits every maximum length characters (wherever that is, spaces included,
+ * though never within a surrogate pair), and an '@' in a value is written as "@@".
+ */
+final class GedcomRecordWriter implements Flushable, Closeable {
+    private final Writer out;
+    private final int maxLength;
+
+    /**
+     * @param maxLength maximum length of a value before splitting into CONC lines, or 0 for no limit
+     */
+    GedcomRecordWriter(final OutputStream out, final int maxLength) {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Writes the node's line (if any) and then, recursively, its children.
+     */
+    void write(final TreeNode<GedcomLine> node) throws IOException {
+        final GedcomLine line = node.getObject();
+        if (line != null) {
+            writeLine(line);
+        }
+        for (final TreeNode<GedcomLine> c : node) {
+            write(c);
+        }
+    }
+
+    private void writeLine(final GedcomLine line) throws IOException {
+        final int level = line.getLevel();
+        final StringBuilder head = new StringBuilder(32);
+        head.append(level);
+        if (line.hasID()) {
+            head.append(" @").append(line.getID()).append('@');
+        }
+        head.append(' ').append(line.getTagString());
+
+        if (line.isPointer()) {
+            this.out.append(head).append(" @").append(line.getPointer()).append("@\n");
+            return;
+        }
+
+        final String value = line.getValue();
+        int start = 0;
+        CharSequence prefix = head;
+        while (true) {
+            final int nl = value.indexOf('\n', start);
+            final String part = nl < 0 ? value.substring(start) : value.substring(start, nl);
+            writeChunks(prefix, part, level + 1);
+            if (nl < 0) {
+                break;
+            }
+            start = nl + 1;
+            prefix = (level + 1) + " CONT";
+        }
+    }
+
+    private void writeChunks(final CharSequence prefix, final String text, final int levelConc) throws IOException {
+        if (this.maxLength <= 0 || text.length() <= this.maxLength) {
+            emit(prefix, text);
+            return;
+        }
+        int start = 0;
+        CharSequence p = prefix;
+        while (start < text.length()) {
+            final int end = splitPoint(text, start);
+            emit(p, text.substring(start, end));
+            start = end;
+            p = levelConc + " CONC";
+        }
+    }
+
+    private int splitPoint(final String text, final int start) {
+        final int max = Math.min(text.length(), start + this.maxLength);
+        if (max < text.length() && max > start + 1 && Character.isHighSurrogate(text.charAt(max - 1))) {
+            return max - 1;
+        }
+        return max;
+    }
+
+    private void emit(final CharSequence prefix, final String text) throws IOException {
+        this.out.append(prefix);
+        if (!text.isEmpty()) {
+            this.out.append(' ');
+            if (text.indexOf('@') < 0) {
+                this.out.append(text);
+            } else {
+                this.out.append(text.replace("@", "@@"));
+            }
+        }
+        this.out.append('\n');
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.out.close();
+    }
+}
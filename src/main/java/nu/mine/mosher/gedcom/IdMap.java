@@ -0,0 +1,208 @@
+package nu.mine.mosher.gedcom;
+
+import java.util.*;
+
+/**
+ * Map of GEDCOM ID to GEDCOM ID, for IDs that are almost always a short prefix and
+ * a number (I12, S87, T12, etc.).
+ *
+ * Such a key is packed into a long (see {@link #encode}) and kept in an open-addressing
+ * table (linear probing, at most half full), so a lookup neither hashes a String
+ * nor allocates anything, and an entry costs two array slots instead of a map node
+ * and a key String. Any other key (a longer prefix, a number with leading zeros,
+ * etc.) is kept in an ordinary HashMap instead.
+ *
+ * Values are never null. Entries cannot be removed (other than by {@link #clear}).
+ * Not thread-safe for writing; once filled, it can be read by many threads.
+ */
+final class IdMap extends AbstractMap<String, String> {
+    private static final long NONE = 0L;
+    private static final long VALID = 1L << 62;
+    private static final int NUMBER_BITS = 40;
+    private static final int MAX_PREFIX = 3;
+    private static final int MAX_DIGITS = 12;
+
+    private long[] keys;
+    private String[] values;
+    private int size;
+    private Map<String, String> irregular;
+
+    IdMap() {
+        this(1024);
+    }
+
+    IdMap(final int expected) {
+        final int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+        this.keys = new long[capacity];
+        this.values = new String[capacity];
+    }
+
+    /**
+     * Packs an ID of 1 to 3 ASCII non-digits followed by a number (of at most 12
+     * digits, without leading zeros) into a long: the prefix's characters, 7 bits
+     * each, above the number's 40 bits, with bit 62 set.
+     * @return the packed ID, or 0 if the ID does not have that form
+     */
+    static long encode(final String id) {
+        final int length = id.length();
+        long prefix = 0L;
+        int i = 0;
+        while (i < length) {
+            final char c = id.charAt(i);
+            if (c >= '0' && c <= '9') {
+                break;
+            }
+            if (c == 0 || c >= 0x80 || i == MAX_PREFIX) {
+                return NONE;
+            }
+            prefix = (prefix << 7) | c;
+            ++i;
+        }
+        final int cDigits = length - i;
+        if (i == 0 || cDigits == 0 || cDigits > MAX_DIGITS || (cDigits > 1 && id.charAt(i) == '0')) {
+            return NONE;
+        }
+        long number = 0L;
+        for (; i < length; ++i) {
+            final char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return NONE;
+            }
+            number = number * 10 + (c - '0');
+        }
+        if (number >= (1L << NUMBER_BITS)) {
+            return NONE;
+        }
+        return VALID | (prefix << NUMBER_BITS) | number;
+    }
+
+    static String decode(final long packed) {
+        final StringBuilder s = new StringBuilder(16);
+        for (long prefix = (packed & ~VALID) >>> NUMBER_BITS; prefix != 0L; prefix >>>= 7) {
+            s.insert(0, (char)(prefix & 0x7F));
+        }
+        return s.append(packed & ((1L << NUMBER_BITS) - 1)).toString();
+    }
+
+    @Override
+    public String get(final Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        final long packed = encode((String)key);
+        if (packed == NONE) {
+            return this.irregular == null ? null : this.irregular.get(key);
+        }
+        final long[] k = this.keys;
+        final int mask = k.length - 1;
+        for (int slot = slot(packed, mask); k[slot] != NONE; slot = (slot + 1) & mask) {
+            if (k[slot] == packed) {
+                return this.values[slot];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getOrDefault(final Object key, final String defaultValue) {
+        final String value = get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public String put(final String key, final String value) {
+        Objects.requireNonNull(value);
+        final long packed = encode(key);
+        if (packed == NONE) {
+            if (this.irregular == null) {
+                this.irregular = new HashMap<>();
+            }
+            return this.irregular.put(key, value);
+        }
+        if ((this.size + 1) * 2 > this.keys.length) {
+            grow();
+        }
+        final int mask = this.keys.length - 1;
+        int slot = slot(packed, mask);
+        while (this.keys[slot] != NONE) {
+            if (this.keys[slot] == packed) {
+                final String previous = this.values[slot];
+                this.values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        this.keys[slot] = packed;
+        this.values[slot] = value;
+        ++this.size;
+        return null;
+    }
+
+    @Override
+    public int size() {
+        return this.size + (this.irregular == null ? 0 : this.irregular.size());
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(this.keys, NONE);
+        Arrays.fill(this.values, null);
+        this.size = 0;
+        this.irregular = null;
+    }
+
+    /*
+    Only for the rare full reads (reports, patches): packed keys are decoded into new Strings.
+     */
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @Override
+            public int size() {
+                return IdMap.this.size();
+            }
+
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                final List<Entry<String, String>> entries = new ArrayList<>(size());
+                for (int slot = 0; slot < keys.length; ++slot) {
+                    if (keys[slot] != NONE) {
+                        entries.add(new SimpleImmutableEntry<>(decode(keys[slot]), values[slot]));
+                    }
+                }
+                if (irregular != null) {
+                    irregular.forEach((k, v) -> entries.add(new SimpleImmutableEntry<>(k, v)));
+                }
+                return Collections.unmodifiableList(entries).iterator();
+            }
+        };
+    }
+
+    private void grow() {
+        final long[] oldKeys = this.keys;
+        final String[] oldValues = this.values;
+        this.keys = new long[oldKeys.length * 2];
+        this.values = new String[oldKeys.length * 2];
+        final int mask = this.keys.length - 1;
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldKeys[i] != NONE) {
+                int slot = slot(oldKeys[i], mask);
+                while (this.keys[slot] != NONE) {
+                    slot = (slot + 1) & mask;
+                }
+                this.keys[slot] = oldKeys[i];
+                this.values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int slot(final long packed, final int mask) {
+        final long h = packed * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+}
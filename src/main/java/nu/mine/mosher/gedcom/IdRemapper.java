@@ -0,0 +1,90 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.collection.TreeNode;
+
+import java.util.*;
+
+/**
+ * Rewrites IDs and pointers of a GEDCOM (sub)tree according to a map of
+ * old-ID to new-ID, and clears out all RIN values.
+ *
+ * The tree is walked iteratively (not recursively), so deep trees cannot
+ * overflow the stack. A new {@link GedcomLine} is allocated only for a line
+ * that actually changes; all other lines are left as they are.
+ *
+ * Every line is looked at, and no record is skipped: any line, at any level, can be
+ * a pointer (citations are at level 2 or deeper) or a RIN, and finding the records
+ * that have nothing to remap would take this same walk. Looking at a line costs
+ * little (usually one lookup in an {@link IdMap}), so the walk is cheap next to
+ * writing the lines out.
+ */
+final class IdRemapper {
+    private final Map<String, String> mapRemapIds;
+
+    IdRemapper(final Map<String, String> mapRemapIds) {
+        this.mapRemapIds = mapRemapIds;
+    }
+
+    /**
+     * Remaps the given node and all its descendants.
+     * @return count of lines rewritten
+     */
+    int remap(final TreeNode<GedcomLine> node) {
+        int cRewritten = 0;
+        if (rewrite(node)) {
+            ++cRewritten;
+        }
+
+        final Deque<Iterator<TreeNode<GedcomLine>>> stack = new ArrayDeque<>();
+        stack.push(node.children());
+        while (!stack.isEmpty()) {
+            final Iterator<TreeNode<GedcomLine>> i = stack.peek();
+            if (!i.hasNext()) {
+                stack.pop();
+                continue;
+            }
+            final TreeNode<GedcomLine> c = i.next();
+            if (rewrite(c)) {
+                ++cRewritten;
+            }
+            final Iterator<TreeNode<GedcomLine>> grandchildren = c.children();
+            if (grandchildren.hasNext()) {
+                stack.push(grandchildren);
+            }
+        }
+
+        return cRewritten;
+    }
+
+    private boolean rewrite(final TreeNode<GedcomLine> node) {
+        final GedcomLine gedcomLine = node.getObject();
+        if (gedcomLine == null) {
+            return false;
+        }
+
+        GedcomLine rewritten = gedcomLine;
+        if (gedcomLine.hasID()) {
+            final String newId = this.mapRemapIds.get(gedcomLine.getID());
+            if (newId != null) {
+                rewritten = new GedcomLine(gedcomLine.getLevel(), "@"+newId+"@", gedcomLine.getTagString(), gedcomLine.getValue());
+            }
+        }
+        if (gedcomLine.isPointer()) {
+            final String newId = this.mapRemapIds.get(gedcomLine.getPointer());
+            if (newId != null) {
+                // assume that no line with a pointer also has an ID (true as of Gedcom 5.5)
+                rewritten = new GedcomLine(gedcomLine.getLevel(), "", gedcomLine.getTagString(), "@"+newId+"@");
+            }
+        }
+        /* clear out all RINs in the generated file */
+        if (gedcomLine.getTag().equals(GedcomTag.RIN) && !gedcomLine.getValue().isEmpty()) {
+            rewritten = new GedcomLine(gedcomLine.getLevel(), "", gedcomLine.getTagString(), "");
+        }
+
+        if (rewritten == gedcomLine) {
+            return false;
+        }
+        node.setObject(rewritten);
+        return true;
+    }
+}
@@ -0,0 +1,221 @@
+package nu.mine.mosher.gedcom;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Leveled diagnostics (to stderr), and an optional machine-readable match report
+ * (one compact JSON object per line).
+ *
+ * Messages are formatted only if their level is enabled: "{}" placeholders in the
+ * format are replaced by the arguments, and fixed-arity overloads avoid allocating
+ * argument arrays. Callers doing extra work only for a message should check
+ * {@link #isEnabled} first.
+ */
+final class Log {
+    enum Level { ERROR, WARN, INFO, DEBUG, TRACE }
+
+    private static volatile Level level = Level.INFO;
+    private static Writer report;
+
+    private Log() {
+        throw new IllegalStateException();
+    }
+
+    static void setLevel(final String name) {
+        try {
+            level = Level.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (final IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid log level: " + name);
+        }
+    }
+
+    static boolean isEnabled(final Level l) {
+        return l.compareTo(level) <= 0;
+    }
+
+    static void section(final String title) {
+        if (isEnabled(Level.INFO)) {
+            println("");
+            println("------------------------------------------------------------");
+            println(title);
+        }
+    }
+
+    static void info(final String format, final Object... args) {
+        log(Level.INFO, format, args);
+    }
+
+    /**
+     * Logs (at INFO) a line that is only of interest at the moment it happens, such as
+     * progress: it is written at once, even while records are visited in parallel,
+     * rather than held until the visit is done (see {@link #println}).
+     */
+    static void progress(final String format, final Object a, final Object b, final Object c) {
+        if (isEnabled(Level.INFO)) {
+            System.err.println(format(format, a, b, c));
+        }
+    }
+
+    static void error(final String format, final Object a, final Object b) {
+        if (isEnabled(Level.ERROR)) {
+            println(format(format, a, b));
+        }
+    }
+
+    static void warn(final String format, final Object a) {
+        if (isEnabled(Level.WARN)) {
+            println(format(format, a));
+        }
+    }
+
+    static void warn(final String format, final Object a, final Object b) {
+        if (isEnabled(Level.WARN)) {
+            println(format(format, a, b));
+        }
+    }
+
+    static void warn(final String format, final Object a, final Object b, final Object c) {
+        if (isEnabled(Level.WARN)) {
+            println(format(format, a, b, c));
+        }
+    }
+
+    static void warn(final String format, final Object a, final Object b, final Object c, final Object d) {
+        if (isEnabled(Level.WARN)) {
+            println(format(format, a, b, c, d));
+        }
+    }
+
+    static void debug(final String format, final Object a) {
+        if (isEnabled(Level.DEBUG)) {
+            println(format(format, a));
+        }
+    }
+
+    static void debug(final String format, final Object a, final Object b) {
+        if (isEnabled(Level.DEBUG)) {
+            println(format(format, a, b));
+        }
+    }
+
+    static void debug(final String format, final Object a, final Object b, final Object c) {
+        if (isEnabled(Level.DEBUG)) {
+            println(format(format, a, b, c));
+        }
+    }
+
+    static void debug(final String format, final Object a, final Object b, final Object c, final Object d) {
+        if (isEnabled(Level.DEBUG)) {
+            println(format(format, a, b, c, d));
+        }
+    }
+
+    static void trace(final String format, final Object a) {
+        if (isEnabled(Level.TRACE)) {
+            println(format(format, a));
+        }
+    }
+
+    private static void log(final Level l, final String format, final Object... args) {
+        if (isEnabled(l)) {
+            println(format(format, args));
+        }
+    }
+
+    /*
+    While records are visited in parallel, lines are kept in record order (see Deferred).
+     */
+    private static void println(final String line) {
+        Deferred.run(() -> System.err.println(line));
+    }
+
+    static String format(final String format, final Object... args) {
+        final StringBuilder s = new StringBuilder(format.length() + 16 * args.length);
+        int iArg = 0;
+        int start = 0;
+        int at;
+        while ((at = format.indexOf("{}", start)) >= 0 && iArg < args.length) {
+            s.append(format, start, at).append(args[iArg++]);
+            start = at + 2;
+        }
+        s.append(format, start, format.length());
+        return s.toString();
+    }
+
+    /**
+     * Starts writing the match report to the given file.
+     */
+    static synchronized void openReport(final String filename) throws IOException {
+        closeReport();
+        report = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    static synchronized void closeReport() throws IOException {
+        if (report != null) {
+            report.close();
+            report = null;
+        }
+    }
+
+    static boolean isReporting() {
+        return report != null;
+    }
+
+    /**
+     * Adds one event to the match report (if there is one).
+     * @param event for example, "not-found", "multiple", or "duplicate"
+     * @param phase the phase reporting it, for example, "note" or "quay"
+     * @param record ID (or other description) of the OLD record involved
+     * @param item the item of the record involved, or empty
+     * @param detail anything else of interest, or empty
+     */
+    static void report(final String event, final String phase, final Object record, final Object item, final Object detail) {
+        if (report == null) {
+            return;
+        }
+        final StringBuilder s = new StringBuilder(128);
+        s.append('{');
+        field(s, "event", event).append(',');
+        field(s, "phase", phase).append(',');
+        field(s, "record", record).append(',');
+        field(s, "item", item).append(',');
+        field(s, "detail", detail);
+        s.append("}\n");
+        final String line = s.toString();
+        Deferred.run(() -> {
+            synchronized (Log.class) {
+                if (report != null) {
+                    try {
+                        report.write(line);
+                    } catch (final IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+        });
+    }
+
+    private static StringBuilder field(final StringBuilder s, final String name, final Object value) {
+        s.append('"').append(name).append("\":\"");
+        final String v = value == null ? "" : value.toString();
+        for (int i = 0; i < v.length(); ++i) {
+            final char c = v.charAt(i);
+            switch (c) {
+                case '"': s.append("\\\""); break;
+                case '\\': s.append("\\\\"); break;
+                case '\n': s.append("\\n"); break;
+                case '\r': s.append("\\r"); break;
+                case '\t': s.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        s.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        s.append(c);
+                    }
+            }
+        }
+        return s.append('"');
+    }
+}
@@ -0,0 +1,40 @@
+package nu.mine.mosher.gedcom;
+
+import java.util.*;
+
+/**
+ * Index of the NEW records of one record type (REPO, SOUR, INDI, or OBJE) by match
+ * value (title, name|birthyear, etc.). Only unique values can be matched: once a
+ * value is seen twice, it is dropped from the index and kept as a duplicate.
+ */
+final class MatchIndex {
+    private final Map<String, String> mapTitleToAncestryId = new HashMap<>(512);
+    private final Set<String> setTitleDuplicates = new LinkedHashSet<>(16);
+
+    void add(final String title, final String ancestryId) {
+        if (!this.setTitleDuplicates.contains(title)) {
+            if (this.mapTitleToAncestryId.containsKey(title)) {
+                this.mapTitleToAncestryId.remove(title);
+                this.setTitleDuplicates.add(title);
+            } else {
+                this.mapTitleToAncestryId.put(title, ancestryId);
+            }
+        }
+    }
+
+    /**
+     * @return ID of the (one) NEW record with the given value, or null
+     */
+    String get(final String title) {
+        return this.mapTitleToAncestryId.get(title);
+    }
+
+    Set<String> duplicates() {
+        return Collections.unmodifiableSet(this.setTitleDuplicates);
+    }
+
+    void clear() {
+        this.mapTitleToAncestryId.clear();
+        this.setTitleDuplicates.clear();
+    }
+}
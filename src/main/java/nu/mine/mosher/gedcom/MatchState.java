@@ -0,0 +1,192 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.collection.TreeNode;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Saved match decisions of the previous run, for incremental matching.
+ *
+ * For each top-level NEW record (by the ID it was exported with), the state has the
+ * record's content hash after its IDs were remapped, and the OLD ID it was matched
+ * to (if any). On the next run, a NEW record whose content hash (with its IDs
+ * translated by the previous decisions) is the same has not changed, so its previous
+ * decision is used again instead of matching it.
+ *
+ * The state is only used if OLD has not changed, and fuzzy matching is the same.
+ */
+final class MatchState {
+    private static final int MAGIC = 0x474D5354; // GMST
+    private static final int VERSION = 2;
+
+    private static final class Entry {
+        final long hash;
+        final String decision;
+
+        Entry(final long hash, final String decision) {
+            this.hash = hash;
+            this.decision = decision;
+        }
+    }
+
+    private final File file;
+    private final byte[] oldHash;
+    private final boolean fuzzy;
+    private final Map<String, Entry> previous;
+    private final Map<String, String> previousDecisions = new HashMap<>();
+    private final Map<String, Entry> current = new LinkedHashMap<>();
+    private int cUnchanged;
+    private int cChanged;
+
+    private MatchState(final File file, final byte[] oldHash, final boolean fuzzy, final Map<String, Entry> previous) {
+        this.file = file;
+        this.oldHash = oldHash;
+        this.fuzzy = fuzzy;
+        this.previous = previous;
+        previous.forEach((id, entry) -> {
+            if (!entry.decision.isEmpty()) {
+                this.previousDecisions.put(id, entry.decision);
+            }
+        });
+    }
+
+    /**
+     * Loads the state saved by the previous run (if any, and if still usable).
+     */
+    static MatchState load(final File file, final String oldFilename, final boolean fuzzy) throws IOException {
+        final byte[] oldHash = FileInput.sha256(oldFilename);
+        final Map<String, Entry> previous = new HashMap<>();
+        if (file.isFile()) {
+            try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    Log.warn("Match state {} is not valid (or is from another version); matching everything.", file);
+                } else if (!Arrays.equals(readHash(in), oldHash)) {
+                    Log.info("OLD has changed since match state {} was saved; matching everything.", file);
+                } else if (in.readBoolean() != fuzzy) {
+                    Log.info("Fuzzy matching has changed since match state {} was saved; matching everything.", file);
+                } else {
+                    final int c = in.readInt();
+                    for (int i = 0; i < c; ++i) {
+                        previous.put(in.readUTF(), new Entry(in.readLong(), in.readUTF()));
+                    }
+                }
+            }
+        }
+        return new MatchState(file, oldHash, fuzzy, previous);
+    }
+
+    /**
+     * Gets the previous decision for an (unchanged) NEW record.
+     * @param top NEW record, as exported
+     * @return the OLD ID it was matched to (possibly its own ID), empty string if it
+     * was not matched, or null if the record is new or has changed
+     */
+    String previousDecision(final TreeNode<GedcomLine> top) {
+        final String id = top.getObject().getID();
+        final Entry entry = this.previous.get(id);
+        if (entry != null && entry.hash == hash(top, this.previousDecisions)) {
+            ++this.cUnchanged;
+            return entry.decision;
+        }
+        ++this.cChanged;
+        return null;
+    }
+
+    /**
+     * Saves the decision for a NEW record, for the next run.
+     * @param exportedId ID of the record, as exported
+     * @param remapped the record, after its IDs were remapped
+     * @param decision the OLD ID the record was matched to, or empty string
+     */
+    void put(final String exportedId, final TreeNode<GedcomLine> remapped, final String decision) {
+        this.current.put(exportedId, new Entry(hash(remapped, Collections.emptyMap()), decision));
+    }
+
+    void save() throws IOException {
+        final File tmp = new File(this.file.getPath() + ".tmp");
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(this.oldHash);
+            out.writeBoolean(this.fuzzy);
+            out.writeInt(this.current.size());
+            for (final Map.Entry<String, Entry> e : this.current.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().hash);
+                out.writeUTF(e.getValue().decision);
+            }
+        }
+        if (this.file.exists() && !this.file.delete() || !tmp.renameTo(this.file)) {
+            throw new IOException("Cannot save match state " + this.file);
+        }
+    }
+
+    /**
+     * @return count of NEW records so far whose previous decision was used
+     */
+    int unchanged() {
+        return this.cUnchanged;
+    }
+
+    /**
+     * @return count of NEW records so far that are new or have changed
+     */
+    int changed() {
+        return this.cChanged;
+    }
+
+    @Override
+    public String toString() {
+        return this.cUnchanged + " unchanged (decisions reused), " + this.cChanged + " new or changed";
+    }
+
+    /*
+    64-bit FNV-1a of every line of the record (with IDs and pointers translated),
+    so it is the same for the same content, from one run to the next. RIN values
+    are left out: the remapped record (see put) has them blanked (by IdRemapper),
+    but the exported one (see previousDecision) still has them.
+     */
+    static long hash(final TreeNode<GedcomLine> top, final Map<String, String> mapIds) {
+        long h = 0xCBF29CE484222325L;
+        final Deque<TreeNode<GedcomLine>> stack = new ArrayDeque<>();
+        stack.push(top);
+        while (!stack.isEmpty()) {
+            final TreeNode<GedcomLine> node = stack.pop();
+            final GedcomLine line = node.getObject();
+            h = fnv(h, Integer.toString(line.getLevel()));
+            h = fnv(h, line.hasID() ? mapIds.getOrDefault(line.getID(), line.getID()) : "");
+            h = fnv(h, line.getTagString());
+            if (line.isPointer()) {
+                h = fnv(h, "@" + mapIds.getOrDefault(line.getPointer(), line.getPointer()));
+            } else {
+                h = fnv(h, line.getTag().equals(GedcomTag.RIN) ? "" : line.getValue());
+            }
+            final List<TreeNode<GedcomLine>> children = new ArrayList<>();
+            for (final TreeNode<GedcomLine> child : node) {
+                children.add(child);
+            }
+            for (int i = children.size() - 1; i >= 0; --i) {
+                stack.push(children.get(i));
+            }
+        }
+        return h;
+    }
+
+    private static long fnv(long h, final String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            h ^= s.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        // separator, so that ("ab","c") and ("a","bc") differ
+        h ^= 0xFFFF;
+        h *= 0x100000001B3L;
+        return h;
+    }
+
+    private static byte[] readHash(final DataInputStream in) throws IOException {
+        final byte[] hash = new byte[32];
+        in.readFully(hash);
+        return hash;
+    }
+}
@@ -0,0 +1,87 @@
+package nu.mine.mosher.gedcom;
+
+import java.util.List;
+
+/**
+ * Entry point for running merges from within another program (rather than from the
+ * command line), many at a time if needed, without starting a new JVM for each one.
+ *
+ * An engine is thread-safe, and can be reused for any number of merges. Each merge
+ * gets its own {@link GedcomMatcher}, so nothing matched in one merge is seen by
+ * another; only the metrics are shared.
+ *
+ * Merging updates the NEW tree in place, and only reads the OLD tree. An OLD tree
+ * that is merged into many NEW trees can be prepared once (see {@link #prepare}).
+ * Then its merges also share a birth-year cache (see {@link YearResolver}), which
+ * goes when the prepared OLD does; otherwise each merge has its own.
+ */
+final class MergeEngine {
+    private final boolean fuzzyIndis;
+    private final Metrics metrics;
+
+    /**
+     * @param fuzzyIndis true to try fuzzy matching for INDIs with no exact match
+     * @param metrics where to count the phases of all merges
+     */
+    MergeEngine(final boolean fuzzyIndis, final Metrics metrics) {
+        this.fuzzyIndis = fuzzyIndis;
+        this.metrics = metrics;
+    }
+
+    MergeEngine(final boolean fuzzyIndis) {
+        this(fuzzyIndis, Metrics.NONE);
+    }
+
+    Metrics metrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Merges one OLD tree into one NEW tree.
+     */
+    MergeResult merge(final GedcomTree oldTree, final GedcomTree newTree) {
+        return merge(oldTree, null, null, new YearResolver(), newTree);
+    }
+
+    /**
+     * Builds the views of an OLD tree, and (unless matching INDIs fuzzily) its match
+     * keys, ahead of time, to merge it into many NEW trees (at the same time, if
+     * wanted). The OLD tree must not be changed afterwards.
+     */
+    Prepared prepare(final GedcomTree oldTree) {
+        final RecordViews oldViews = RecordViews.prebuilt(oldTree.getRoot());
+        final YearResolver years = new YearResolver();
+        final List<OldIndex.Key> oldKeys = this.fuzzyIndis ? null : GedcomMatcher.oldMatchKeys(oldTree.getRoot(), oldViews, years);
+        return new Prepared(oldTree, oldViews, oldKeys, years);
+    }
+
+    final class Prepared {
+        private final GedcomTree oldTree;
+        private final RecordViews oldViews;
+        private final List<OldIndex.Key> oldKeys;
+        private final YearResolver years;
+
+        private Prepared(final GedcomTree oldTree, final RecordViews oldViews, final List<OldIndex.Key> oldKeys, final YearResolver years) {
+            this.oldTree = oldTree;
+            this.oldViews = oldViews;
+            this.oldKeys = oldKeys;
+            this.years = years;
+        }
+
+        GedcomTree oldTree() {
+            return this.oldTree;
+        }
+
+        MergeResult merge(final GedcomTree newTree) {
+            return MergeEngine.this.merge(this.oldTree, this.oldViews, this.oldKeys, this.years, newTree);
+        }
+    }
+
+    private MergeResult merge(final GedcomTree oldTree, final RecordViews oldViews, final List<OldIndex.Key> oldKeys, final YearResolver years, final GedcomTree newTree) {
+        final long start = System.nanoTime();
+        final GedcomMatcher matcher = new GedcomMatcher(this.fuzzyIndis, oldViews, years);
+        matcher.metrics(this.metrics);
+        matcher.matchAndUpdate(RecordLookup.of(oldTree), oldKeys, newTree);
+        return new MergeResult(newTree, matcher.remappedIds(), matcher.duplicates(), (System.nanoTime() - start) / 1_000_000L);
+    }
+}
@@ -0,0 +1,51 @@
+package nu.mine.mosher.gedcom;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The outcome of one merge (see {@link MergeEngine}).
+ */
+final class MergeResult {
+    private final GedcomTree merged;
+    private final Map<String, String> remappedIds;
+    private final Map<GedcomTag, Set<String>> duplicates;
+    private final long millis;
+
+    MergeResult(final GedcomTree merged, final Map<String, String> remappedIds, final Map<GedcomTag, Set<String>> duplicates, final long millis) {
+        this.merged = merged;
+        this.remappedIds = remappedIds;
+        this.duplicates = duplicates;
+        this.millis = millis;
+    }
+
+    /**
+     * The NEW tree, with OLD's IDs, notes, dates, etc. restored.
+     */
+    GedcomTree merged() {
+        return this.merged;
+    }
+
+    /**
+     * NEW (exported) IDs that were changed back to OLD IDs.
+     */
+    Map<String, String> remappedIds() {
+        return this.remappedIds;
+    }
+
+    /**
+     * Match values found on more than one NEW record (so not matched), by record type.
+     */
+    Map<GedcomTag, Set<String>> duplicates() {
+        return this.duplicates;
+    }
+
+    long millis() {
+        return this.millis;
+    }
+
+    @Override
+    public String toString() {
+        return this.remappedIds.size() + " IDs remapped, " + this.duplicates.values().stream().mapToInt(Set::size).sum() + " duplicates, in " + this.millis + " ms";
+    }
+}
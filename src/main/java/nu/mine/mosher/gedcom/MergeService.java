@@ -0,0 +1,201 @@
+package nu.mine.mosher.gedcom;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import nu.mine.mosher.gedcom.exception.InvalidLevel;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Service mode: a long-running local HTTP server (on the loopback address only) that
+ * runs merge jobs, so that the JVM is started (and warmed up) only once.
+ *
+ * POST /merge with old=, new=, and out= (file paths, as form or query parameters)
+ * merges old into new and writes the result to out (gzipped if it ends with .gz).
+ * The response is a one-line JSON summary. GET /metrics gives the metrics of all
+ * jobs so far (see {@link Metrics}).
+ *
+ * Jobs run at the same time (up to --threads). Recently used OLD trees are kept,
+ * loaded and with their views built, in a cache of at most --cache trees (least
+ * recently used first out), keyed by the hash of the file's content, so an OLD that
+ * changes on disk is loaded again.
+ */
+final class MergeService {
+    private final MergeEngine engine;
+    private final int capacity;
+    private final boolean fused;
+    private final Map<String, Future<MergeEngine.Prepared>> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private MergeService(final MergeEngine engine, final int capacity, final boolean fused) {
+        this.engine = engine;
+        this.capacity = capacity;
+        this.fused = fused;
+    }
+
+    static void run(final Options options, final Metrics metrics) throws IOException {
+        final int port = options.getInt("serve", 8901);
+        final int cThreads = Math.max(1, options.getInt("threads", Runtime.getRuntime().availableProcessors()));
+        final MergeService service = new MergeService(new MergeEngine(options.has("fuzzy"), metrics), Math.max(1, options.getInt("cache", 4)), options.has("fused-write"));
+
+        final HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/merge", service::merge);
+        server.createContext("/metrics", exchange -> respond(exchange, 200, metrics.toJson()));
+        server.setExecutor(Executors.newFixedThreadPool(cThreads, r -> {
+            final Thread t = new Thread(r, "gedcom-service");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+        Log.info("Service: listening on {}, {} jobs at a time.", server.getAddress(), cThreads);
+
+        // runs until the process is stopped
+        try {
+            new CountDownLatch(1).await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private void merge(final HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            respond(exchange, 405, error("use POST"));
+            return;
+        }
+        final Map<String, String> params = params(exchange);
+        final String oldFilename = params.get("old");
+        final String newFilename = params.get("new");
+        final String outFilename = params.get("out");
+        if (oldFilename == null || newFilename == null || outFilename == null) {
+            respond(exchange, 400, error("old, new, and out are all required"));
+            return;
+        }
+        try {
+            final MergeEngine.Prepared old = prepared(oldFilename);
+            final GedcomTree newTree = GedcomLoader.load(newFilename).getGedcom();
+            final MergeResult result = old.merge(newTree);
+            try (final OutputStream out = FileOutput.open(outFilename, false)) {
+                GedcomMatcher.saveGedcom(result.merged(), out, this.fused);
+            }
+            Log.info("Service: merged {} into {}: {}.", oldFilename, outFilename, result);
+            respond(exchange, 200, "{\"out\":" + quote(outFilename) +
+                ",\"remapped\":" + result.remappedIds().size() +
+                ",\"duplicates\":" + result.duplicates().values().stream().mapToInt(Set::size).sum() +
+                ",\"ms\":" + result.millis() + "}");
+        } catch (final IOException | InvalidLevel | RuntimeException e) {
+            Log.error("ERROR: merge of {} failed: {}", newFilename, e);
+            respond(exchange, 500, error(String.valueOf(e)));
+        }
+    }
+
+    /*
+    The first job to need an OLD loads it; any other job needing it meanwhile waits
+    for that load (rather than loading it again).
+     */
+    private MergeEngine.Prepared prepared(final String oldFilename) throws IOException, InvalidLevel {
+        final String key = FileInput.hex(FileInput.sha256(oldFilename));
+        final Future<MergeEngine.Prepared> future;
+        FutureTask<MergeEngine.Prepared> load = null;
+        synchronized (this.cache) {
+            Future<MergeEngine.Prepared> cached = this.cache.get(key);
+            if (cached == null) {
+                load = new FutureTask<>(() -> this.engine.prepare(GedcomLoader.load(oldFilename).getGedcom()));
+                cached = load;
+                this.cache.put(key, load);
+                evict();
+            }
+            future = cached;
+        }
+        if (load != null) {
+            Log.info("Service: loading {}.", oldFilename);
+            load.run();
+        }
+        try {
+            return future.get();
+        } catch (final ExecutionException e) {
+            synchronized (this.cache) {
+                this.cache.remove(key, future);
+            }
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof InvalidLevel) {
+                throw (InvalidLevel)cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted loading " + oldFilename);
+        }
+    }
+
+    private void evict() {
+        final Iterator<String> iKey = this.cache.keySet().iterator();
+        while (this.cache.size() > this.capacity && iKey.hasNext()) {
+            iKey.next();
+            iKey.remove();
+        }
+    }
+
+    private static Map<String, String> params(final HttpExchange exchange) throws IOException {
+        final Map<String, String> params = new HashMap<>();
+        parse(exchange.getRequestURI().getRawQuery(), params);
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (final InputStream in = exchange.getRequestBody()) {
+            final byte[] buf = new byte[4096];
+            for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+                body.write(buf, 0, n);
+            }
+        }
+        parse(new String(body.toByteArray(), StandardCharsets.UTF_8), params);
+        return params;
+    }
+
+    private static void parse(final String form, final Map<String, String> params) throws UnsupportedEncodingException {
+        if (form == null || form.isEmpty()) {
+            return;
+        }
+        for (final String pair : form.split("&")) {
+            final int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1).trim(), "UTF-8"));
+            }
+        }
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final String json) throws IOException {
+        final byte[] body = (json + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (final OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String error(final String message) {
+        return "{\"error\":" + quote(message) + "}";
+    }
+
+    private static String quote(final String s) {
+        final StringBuilder q = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); ++i) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                q.append('\\').append(c);
+            } else if (c < 0x20) {
+                q.append(String.format("\\u%04x", (int)c));
+            } else {
+                q.append(c);
+            }
+        }
+        return q.append('"').toString();
+    }
+}
@@ -0,0 +1,230 @@
+package nu.mine.mosher.gedcom;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Timing and counts for each phase of a run (matching, restoring, etc.), summed
+ * over all the matchers using it (so one instance can be shared by a batch).
+ *
+ * A phase's time is the time spent in its own visitors and steps. Phases that share
+ * a {@link RecordPass} run interleaved, so their times add up to the time of the pass.
+ * Records visited in parallel add up their times too, so a phase can take longer than
+ * the wall time it ran in.
+ * Allocated bytes are per thread (where the VM can measure them), and peak heap is
+ * sampled, so both are approximate.
+ *
+ * While a long phase runs, a progress line (records per second) is logged now and then.
+ *
+ * Without --metrics, the matcher uses {@link #NONE}, which measures nothing at all.
+ */
+final class Metrics {
+    private static final long PROGRESS_NANOS = 10_000_000_000L;
+    private static final int PROGRESS_EVERY = 4096;
+    private static final java.lang.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Metrics that are off: all its phases are one phase, which counts nothing, and
+     * whose timed methods run the visitor or step as it is (not wrapped in anything).
+     */
+    static final Metrics NONE = new Metrics(false);
+
+    private final boolean on;
+    private final long start = System.nanoTime();
+    private final Map<String, Phase> phases = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final AtomicLong lastProgress = new AtomicLong(this.start);
+    private final Phase off = new Phase("");
+
+    Metrics() {
+        this(true);
+    }
+
+    private Metrics(final boolean on) {
+        this.on = on;
+    }
+
+    final class Phase {
+        private final String name;
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder records = new LongAdder();
+        private final LongAdder matches = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder duplicates = new LongAdder();
+        private final LongAdder allocated = new LongAdder();
+        private final LongAccumulator peakHeap = new LongAccumulator(Math::max, 0L);
+
+        private Phase(final String name) {
+            this.name = name;
+        }
+
+        void match() {
+            if (on) {
+                this.matches.increment();
+            }
+        }
+
+        void miss() {
+            if (on) {
+                this.misses.increment();
+            }
+        }
+
+        void duplicate() {
+            if (on) {
+                this.duplicates.increment();
+            }
+        }
+
+        RecordVisitor timed(final RecordVisitor visitor) {
+            if (!on) {
+                return visitor;
+            }
+            return top -> {
+                final long alloc0 = allocatedBytes();
+                final long t0 = System.nanoTime();
+                try {
+                    visitor.visit(top);
+                } finally {
+                    done(t0, alloc0);
+                    this.records.increment();
+                    if (this.records.sum() % PROGRESS_EVERY == 0) {
+                        progress();
+                    }
+                }
+            };
+        }
+
+        Runnable timed(final Runnable step) {
+            if (!on) {
+                return step;
+            }
+            return () -> {
+                final long alloc0 = allocatedBytes();
+                final long t0 = System.nanoTime();
+                try {
+                    step.run();
+                } finally {
+                    done(t0, alloc0);
+                    sampleHeap();
+                }
+            };
+        }
+
+        int timed(final IntSupplier step) {
+            if (!on) {
+                return step.getAsInt();
+            }
+            final long alloc0 = allocatedBytes();
+            final long t0 = System.nanoTime();
+            try {
+                return step.getAsInt();
+            } finally {
+                done(t0, alloc0);
+                sampleHeap();
+            }
+        }
+
+        private void done(final long t0, final long alloc0) {
+            this.nanos.add(System.nanoTime() - t0);
+            if (alloc0 >= 0) {
+                this.allocated.add(allocatedBytes() - alloc0);
+            }
+        }
+
+        private void sampleHeap() {
+            this.peakHeap.accumulate(heapUsed());
+        }
+
+        private void progress() {
+            sampleHeap();
+            final long now = System.nanoTime();
+            final long last = lastProgress.get();
+            if (now - last >= PROGRESS_NANOS && lastProgress.compareAndSet(last, now)) {
+                final long n = this.records.sum();
+                Log.progress("Progress: {}: {} records, {}/s.", this.name, n, perSecond(n, this.nanos.sum()));
+            }
+        }
+
+        private void json(final StringBuilder s) {
+            final long ns = this.nanos.sum();
+            final long n = this.records.sum();
+            s.append('"').append(this.name).append("\":{");
+            s.append("\"ms\":").append(ns / 1_000_000L);
+            s.append(",\"records\":").append(n);
+            s.append(",\"recordsPerSec\":").append(perSecond(n, ns));
+            s.append(",\"matches\":").append(this.matches.sum());
+            s.append(",\"misses\":").append(this.misses.sum());
+            s.append(",\"duplicates\":").append(this.duplicates.sum());
+            s.append(",\"allocatedMB\":").append(this.allocated.sum() >> 20);
+            s.append(",\"peakHeapMB\":").append(this.peakHeap.get() >> 20);
+            s.append('}');
+        }
+    }
+
+    /**
+     * Gets (or starts) the phase with the given name.
+     */
+    Phase phase(final String name) {
+        if (!this.on) {
+            return this.off;
+        }
+        return this.phases.computeIfAbsent(name, Phase::new);
+    }
+
+    /**
+     * Whole run: wall time, heap peak (from the VM's memory pools), and each phase.
+     */
+    String toJson() {
+        final StringBuilder s = new StringBuilder(2048);
+        s.append("{\"ms\":").append((System.nanoTime() - this.start) / 1_000_000L);
+        s.append(",\"peakHeapMB\":").append(peakHeapPools() >> 20);
+        s.append(",\"phases\":{");
+        synchronized (this.phases) {
+            String sep = "";
+            for (final Phase phase : this.phases.values()) {
+                s.append(sep);
+                phase.json(s);
+                sep = ",";
+            }
+        }
+        return s.append("}}").toString();
+    }
+
+    private static long perSecond(final long n, final long nanos) {
+        return nanos <= 0 ? 0 : n * 1_000_000_000L / nanos;
+    }
+
+    private static long heapUsed() {
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long peakHeapPools() {
+        long peak = 0;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /*
+    Bytes allocated so far by this thread, or -1 if the VM cannot tell.
+     */
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            final com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean)THREADS;
+            if (sun.isThreadAllocatedMemoryEnabled()) {
+                return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1L;
+    }
+}
@@ -0,0 +1,355 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.collection.TreeNode;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Persisted index of an OLD GEDCOM file (saved next to it, as old.ged.idx), so that
+ * OLD does not have to be loaded (read and parsed as a whole) for every merge.
+ *
+ * The index holds the OLD side of matching (the match keys of the REPO, SOUR, INDI
+ * and OBJE records, in the order the matchOld pass computes them), and the byte
+ * offset of each top-level record in OLD. Records are flagged if the restore phases
+ * need them (HEAD, OBJE, and records with _XY, FROM/TO dates, NOTE references, or
+ * citations with QUAY or _APID).
+ *
+ * When opened, OLD is memory-mapped and checked against the index: its size, then
+ * (only if its modification time has changed since the index was built) its content
+ * hash. A stale index is not used, nor is one whose match keys were derived by another
+ * version of the matcher (see {@link GedcomMatcher#MATCH_KEYS_VERSION}). Then only the
+ * flagged records are parsed
+ * (they are the records of {@link #getRoot()}). Any other record is parsed when it
+ * is first looked up by ID (for example, NOTE records). Repeated values of the
+ * parsed records are shared (see {@link StringPool}).
+ *
+ * The index does not have what fuzzy INDI matching needs, so it is not used then.
+ * A compressed OLD cannot be indexed (its records have no byte offsets to map), nor
+ * can one of 2 GB or more (which cannot be mapped as one buffer). Nor can one that is
+ * not UTF-8 (by its BOM and HEAD.CHAR), as its records are parsed as UTF-8 (see
+ * {@link GedcomRecordReader}) rather than in their own character set, as gedcom-lib
+ * does; its character set is saved in the index, and checked again when it is opened.
+ */
+final class OldIndex implements RecordLookup {
+    private static final int MAGIC = 0x474D4958; // GMIX
+    private static final int VERSION = 3;
+    private static final int HEADER = 4 + 4 + 4 + 8 + 8 + 32;
+    /*
+    A file changed within this long of when it was indexed could change again without
+    its modification time changing (on a file system with coarse times), so its time
+    is not saved, and its hash is always checked.
+     */
+    private static final long RACY_MILLIS = 2_000L;
+    private static final String SUFFIX = ".idx";
+
+    static final class Key {
+        final GedcomTag tag;
+        final String title;
+        final String oldId;
+
+        Key(final GedcomTag tag, final String title, final String oldId) {
+            this.tag = tag;
+            this.title = title;
+            this.oldId = oldId;
+        }
+    }
+
+    private static final class Slice {
+        final int offset;
+        final int length;
+
+        Slice(final int offset, final int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final ByteBuffer old;
+    private final Map<String, Slice> mapIdToSlice;
+    private final Map<String, TreeNode<GedcomLine>> mapIdToNode = new HashMap<>();
+    private final TreeNode<GedcomLine> root = new TreeNode<>();
+    private final List<Key> keys;
+    private final StringPool pool = new StringPool();
+
+    private OldIndex(final ByteBuffer old, final Map<String, Slice> mapIdToSlice, final List<Key> keys) {
+        this.old = old;
+        this.mapIdToSlice = mapIdToSlice;
+        this.keys = Collections.unmodifiableList(keys);
+    }
+
+    static File indexFile(final String oldFilename) {
+        return new File(oldFilename + SUFFIX);
+    }
+
+    List<Key> keys() {
+        return this.keys;
+    }
+
+    /**
+     * The flagged records, in file order.
+     */
+    @Override
+    public TreeNode<GedcomLine> getRoot() {
+        return this.root;
+    }
+
+    /**
+     * Parses the record (once), if it was not flagged.
+     * Safe to call from more than one thread.
+     */
+    @Override
+    public synchronized TreeNode<GedcomLine> getNode(final String id) {
+        TreeNode<GedcomLine> node = this.mapIdToNode.get(id);
+        if (node == null) {
+            final Slice slice = this.mapIdToSlice.get(id);
+            if (slice == null) {
+                return null;
+            }
+            node = parse(this.old, slice, this.pool);
+            this.mapIdToNode.put(id, node);
+        }
+        return node;
+    }
+
+    /**
+     * Builds the index of the given OLD file, and saves it next to the file.
+     * @return the index file
+     */
+    static File build(final String oldFilename) throws IOException {
+        if (FileInput.type(oldFilename) != FileInput.Type.PLAIN) {
+            throw new IllegalArgumentException("Cannot index a compressed file: " + oldFilename);
+        }
+        if (tooBig(oldFilename)) {
+            throw new IOException("Cannot index a file of 2 GB or more: " + oldFilename + " (use --no-index)");
+        }
+        final long modified = modified(oldFilename);
+        final ByteBuffer old = FileInput.map(oldFilename);
+        final byte[] hash = hash(old);
+
+        final List<Slice> slices = split(old);
+        final String charset = GedcomRecordReader.charset(new FileInput.ByteBufferInputStream(old.duplicate()));
+        if (!GedcomRecordReader.isUtf8(charset)) {
+            throw new IOException("Cannot index a file that is not UTF-8: " + oldFilename + " (CHAR " + charset + "; use --no-index)");
+        }
+        final TreeNode<GedcomLine> root = new TreeNode<>();
+        for (final Slice slice : slices) {
+            root.addChild(parse(old, slice, null));
+        }
+        final List<Key> keys = GedcomMatcher.oldMatchKeys(root);
+
+        final File file = indexFile(oldFilename);
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(GedcomMatcher.MATCH_KEYS_VERSION);
+            out.writeLong(old.limit());
+            out.writeLong(System.currentTimeMillis() - modified < RACY_MILLIS ? 0L : modified);
+            out.write(hash);
+            writeString(out, charset);
+
+            out.writeInt(slices.size());
+            final Iterator<TreeNode<GedcomLine>> iTop = root.children();
+            for (final Slice slice : slices) {
+                final TreeNode<GedcomLine> top = iTop.next();
+                final GedcomLine line = top.getObject();
+                writeString(out, line.hasID() ? line.getID() : "");
+                out.writeInt(slice.offset);
+                out.writeInt(slice.length);
+                out.writeBoolean(needsRestore(top));
+            }
+
+            out.writeInt(keys.size());
+            for (final Key key : keys) {
+                writeString(out, key.tag.name());
+                writeString(out, key.title);
+                writeString(out, key.oldId);
+            }
+        }
+        Log.info("Index: {} records, {} match keys, saved to {}", slices.size(), keys.size(), file);
+        return file;
+    }
+
+    /**
+     * Opens the index of the given OLD file, if it exists and is up to date.
+     * @return the index, or null if there is no (usable) index
+     */
+    static OldIndex open(final String oldFilename) throws IOException {
+        final File file = indexFile(oldFilename);
+        if (!file.isFile()) {
+            return null;
+        }
+        if (tooBig(oldFilename)) {
+            Log.warn("{} is too big (2 GB or more) for its index {}; not using it.", oldFilename, file);
+            return null;
+        }
+        final ByteBuffer in = FileInput.map(file.getPath());
+        if (in.remaining() < HEADER || in.getInt() != MAGIC || in.getInt() != VERSION) {
+            Log.warn("Index {} is not valid (or is from another version); not using it.", file);
+            return null;
+        }
+        if (in.getInt() != GedcomMatcher.MATCH_KEYS_VERSION) {
+            Log.warn("Index {} has match keys from another version of matching; not using it.", file);
+            return null;
+        }
+        final long length = in.getLong();
+        final long modified = in.getLong();
+        final byte[] hash = new byte[32];
+        in.get(hash);
+        final ByteBuffer old = FileInput.map(oldFilename);
+        if (length != old.limit() || (modified != modified(oldFilename) && !Arrays.equals(hash, hash(old)))) {
+            Log.warn("Index {} is out of date; not using it.", file);
+            return null;
+        }
+        final String charset = readString(in);
+        if (!GedcomRecordReader.isUtf8(charset)) {
+            Log.warn("Index {} is of a file that is not UTF-8 (CHAR {}); not using it.", file, charset);
+            return null;
+        }
+
+        final int cRecords = in.getInt();
+        final Map<String, Slice> mapIdToSlice = new HashMap<>(cRecords * 2);
+        final List<Slice> flagged = new ArrayList<>(cRecords);
+        for (int i = 0; i < cRecords; ++i) {
+            final String id = readString(in);
+            final Slice slice = new Slice(in.getInt(), in.getInt());
+            if (!id.isEmpty()) {
+                mapIdToSlice.put(id, slice);
+            }
+            if (in.get() != 0) {
+                flagged.add(slice);
+            }
+        }
+
+        final int cKeys = in.getInt();
+        final List<Key> keys = new ArrayList<>(cKeys);
+        for (int i = 0; i < cKeys; ++i) {
+            keys.add(new Key(GedcomTag.valueOf(readString(in)), readString(in), readString(in)));
+        }
+
+        final OldIndex index = new OldIndex(old, mapIdToSlice, keys);
+        for (final Slice slice : flagged) {
+            final TreeNode<GedcomLine> top = parse(old, slice, index.pool);
+            index.root.addChild(top);
+            if (top.getObject().hasID()) {
+                index.mapIdToNode.put(top.getObject().getID(), top);
+            }
+        }
+        Log.info("Index: using {} ({} of {} records needed; {}).", file, flagged.size(), cRecords, index.pool);
+        return index;
+    }
+
+    /*
+    Does any restore phase have anything to do for this record? (This can say yes
+    when the phase then finds nothing to do, but must never say no when it would.)
+     */
+    private static boolean needsRestore(final TreeNode<GedcomLine> top) {
+        final GedcomTag tag = top.getObject().getTag();
+        if (tag.equals(GedcomTag.HEAD) || tag.equals(GedcomTag.OBJE)) {
+            return true;
+        }
+        for (final TreeNode<GedcomLine> item : top) {
+            if (item.getObject().getTagString().equals("_XY")) {
+                return true;
+            }
+            for (final TreeNode<GedcomLine> att : item) {
+                final GedcomLine line = att.getObject();
+                if (line.getTag().equals(GedcomTag.NOTE) && line.isPointer()) {
+                    return true;
+                }
+                if (line.getTag().equals(GedcomTag.DATE) && (line.getValue().startsWith("FROM ") || line.getValue().startsWith("TO "))) {
+                    return true;
+                }
+                for (final TreeNode<GedcomLine> sub : att) {
+                    final GedcomLine subLine = sub.getObject();
+                    if (subLine.getTag().equals(GedcomTag.QUAY) || subLine.getTagString().equals("_APID")) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+    Top-level records start at lines with level 0 (after any leading white space).
+     */
+    private static List<Slice> split(final ByteBuffer buf) {
+        final List<Slice> slices = new ArrayList<>(4096);
+        final int n = buf.limit();
+        int start = -1;
+        int i = 0;
+        while (i < n) {
+            int j = i;
+            while (j < n && (buf.get(j) == ' ' || buf.get(j) == '\t')) {
+                ++j;
+            }
+            if (j + 1 < n && buf.get(j) == '0' && (buf.get(j + 1) == ' ' || buf.get(j + 1) == '\t')) {
+                if (start >= 0) {
+                    slices.add(new Slice(start, i - start));
+                }
+                start = i;
+            } else if (start < 0 && i == 0) {
+                // anything before the first record (a BOM) goes with it
+                start = 0;
+            }
+            while (i < n && buf.get(i) != '\n' && buf.get(i) != '\r') {
+                ++i;
+            }
+            while (i < n && (buf.get(i) == '\n' || buf.get(i) == '\r')) {
+                ++i;
+            }
+        }
+        if (start >= 0 && start < n) {
+            slices.add(new Slice(start, n - start));
+        }
+        return slices;
+    }
+
+    private static TreeNode<GedcomLine> parse(final ByteBuffer buf, final Slice slice, final StringPool pool) {
+        final ByteBuffer record = buf.duplicate();
+        record.position(slice.offset);
+        record.limit(slice.offset + slice.length);
+        try (final GedcomRecordReader in = new GedcomRecordReader(new FileInput.ByteBufferInputStream(record.slice()), pool)) {
+            return in.next();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean tooBig(final String filename) {
+        return new File(filename).length() > Integer.MAX_VALUE;
+    }
+
+    private static long modified(final String filename) throws IOException {
+        return Files.getLastModifiedTime(Paths.get(filename)).toMillis();
+    }
+
+    private static byte[] hash(final ByteBuffer buf) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(buf.duplicate());
+            return digest.digest();
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeString(final DataOutputStream out, final String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final ByteBuffer in) {
+        final byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
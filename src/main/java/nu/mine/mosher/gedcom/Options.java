@@ -0,0 +1,62 @@
+package nu.mine.mosher.gedcom;
+
+import java.util.*;
+
+/**
+ * Command line options: "--flag" or "--name=value" switches, plus positional arguments.
+ * Switches may appear anywhere on the command line. Only known switches are accepted
+ * (so that a misspelled one is not just ignored).
+ */
+final class Options {
+    private final Map<String, String> switches = new HashMap<>();
+    private final List<String> positional = new ArrayList<>();
+
+    private Options() {
+    }
+
+    /**
+     * @param known the names of all switches that can be given
+     * @throws IllegalArgumentException for a switch that is not known
+     */
+    static Options parse(final Collection<String> known, final String... args) {
+        final Options options = new Options();
+        for (final String arg : args) {
+            if (arg.startsWith("--") && arg.length() > 2) {
+                final int eq = arg.indexOf('=');
+                final String name = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+                if (!known.contains(name)) {
+                    throw new IllegalArgumentException("Unknown option: --" + name);
+                }
+                options.switches.put(name, eq < 0 ? "" : arg.substring(eq + 1));
+            } else {
+                options.positional.add(arg);
+            }
+        }
+        return options;
+    }
+
+    boolean has(final String name) {
+        return this.switches.containsKey(name);
+    }
+
+    String get(final String name, final String defaultValue) {
+        final String value = this.switches.get(name);
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    int getInt(final String name, final int defaultValue) {
+        final String value = get(name, "");
+        if (value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for --" + name + ": " + value);
+        }
+    }
+
+    List<String> positional() {
+        return Collections.unmodifiableList(this.positional);
+    }
+}
@@ -0,0 +1,104 @@
+package nu.mine.mosher.gedcom;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs phases of the matcher, each after the phases it depends on, on a fork-join pool:
+ * phases that do not depend on each other run at the same time. (Phases must be added
+ * after the phases they depend on, so adding order is always a valid order to run them
+ * in one at a time.)
+ *
+ * Phases must not share anything mutable that is not thread-safe; in particular, nodes
+ * to be added to NEW are queued by each phase in its own list (see {@link #added}), and
+ * the lists are taken in the order the phases were added, so the result is the same
+ * however the phases were scheduled.
+ *
+ * Phases running at the same time hold their log messages (see {@link Deferred}) until
+ * they are done, so that each phase's messages come out together, under its heading.
+ */
+final class PhaseScheduler {
+    private static final class Phase {
+        final String name;
+        final Runnable body;
+        final List<String> after;
+        final List<GedcomMatcher.ChildToBeAdded> added = new ArrayList<>(256);
+
+        Phase(final String name, final Runnable body, final List<String> after) {
+            this.name = name;
+            this.body = body;
+            this.after = after;
+        }
+    }
+
+    private final Map<String, Phase> phases = new LinkedHashMap<>();
+
+    /**
+     * @param body the phase (queuing any nodes it adds in {@link #added}(name))
+     * @param after names of the (already added) phases that must finish first
+     */
+    PhaseScheduler add(final String name, final Runnable body, final String... after) {
+        for (final String a : after) {
+            if (!this.phases.containsKey(a)) {
+                throw new IllegalArgumentException("Phase " + name + " depends on unknown phase " + a);
+            }
+        }
+        if (this.phases.put(name, new Phase(name, body, Arrays.asList(after))) != null) {
+            throw new IllegalArgumentException("Duplicate phase " + name);
+        }
+        return this;
+    }
+
+    /**
+     * Where the given phase queues the nodes it adds to NEW.
+     */
+    List<GedcomMatcher.ChildToBeAdded> added(final String name) {
+        return this.phases.get(name).added;
+    }
+
+    /**
+     * Runs all the phases, in parallel where possible (or, if parallel is false, one at
+     * a time in the order they were added).
+     * @return the nodes queued by all phases, in the order the phases were added
+     */
+    List<GedcomMatcher.ChildToBeAdded> run(final boolean parallel) {
+        if (parallel) {
+            final ForkJoinPool pool = ForkJoinPool.commonPool();
+            final Map<String, CompletableFuture<Void>> done = new HashMap<>();
+            for (final Phase phase : this.phases.values()) {
+                final CompletableFuture<?>[] deps = phase.after.stream().map(done::get).toArray(CompletableFuture<?>[]::new);
+                done.put(phase.name, CompletableFuture.allOf(deps).thenRunAsync(() -> flush(Deferred.collect(phase.body)), pool));
+            }
+            join(CompletableFuture.allOf(done.values().toArray(new CompletableFuture<?>[0])));
+        } else {
+            this.phases.values().forEach(phase -> phase.body.run());
+        }
+
+        final List<GedcomMatcher.ChildToBeAdded> all = new ArrayList<>();
+        this.phases.values().forEach(phase -> all.addAll(phase.added));
+        return all;
+    }
+
+    private static void flush(final List<Runnable> effects) {
+        synchronized (PhaseScheduler.class) {
+            effects.forEach(Runnable::run);
+        }
+    }
+
+    private static void join(final CompletableFuture<Void> all) {
+        try {
+            all.join();
+        } catch (final CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.collection.TreeNode;
+
+/**
+ * How the matcher finds records in a GEDCOM file (by their IDs as read from the file),
+ * and the root under which it adds new top-level records.
+ */
+interface RecordLookup {
+    TreeNode<GedcomLine> getNode(String id);
+
+    TreeNode<GedcomLine> getRoot();
+
+    static RecordLookup of(final GedcomTree tree) {
+        return new RecordLookup() {
+            @Override
+            public TreeNode<GedcomLine> getNode(final String id) {
+                return tree.getNode(id);
+            }
+
+            @Override
+            public TreeNode<GedcomLine> getRoot() {
+                return tree.getRoot();
+            }
+        };
+    }
+}
@@ -0,0 +1,225 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.collection.TreeNode;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A single traversal of the top-level records of a GEDCOM tree, feeding each
+ * record to every visitor registered for its tag. For any one record, visitors
+ * are called in the order they were registered.
+ *
+ * A pass can be split into stages (see {@link #then()}), when every record must
+ * be seen by the visitors of one stage before any record is seen by the visitors
+ * of the next stage. Each stage costs one traversal.
+ *
+ * Visitors (and finishers) can be registered under a {@link Metrics.Phase}, which
+ * times them (see {@link #phase}).
+ *
+ * A pass can visit the records of each stage in parallel (see {@link #parallel}),
+ * if its visitors are written for that (see {@link Deferred}).
+ */
+final class RecordPass {
+    private static final class Registration {
+        final GedcomTag tag; // null means all records
+        final RecordVisitor visitor;
+        Registration(final GedcomTag tag, final RecordVisitor visitor) {
+            this.tag = tag; this.visitor = visitor;
+        }
+    }
+
+    private static final class Stage {
+        final List<Runnable> starters = new ArrayList<>();
+        final List<Registration> registrations = new ArrayList<>();
+        final List<Runnable> finishers = new ArrayList<>();
+        boolean started;
+        final Map<GedcomTag, List<RecordVisitor>> dispatch = new EnumMap<>(GedcomTag.class);
+
+        void start() {
+            if (!this.started) {
+                this.started = true;
+                this.starters.forEach(Runnable::run);
+            }
+        }
+
+        void visit(final TreeNode<GedcomLine> top) {
+            final GedcomLine line = top.getObject();
+            if (line != null) {
+                for (final RecordVisitor visitor : this.dispatch.computeIfAbsent(line.getTag(), this::visitorsFor)) {
+                    visitor.visit(top);
+                }
+            }
+        }
+
+        /*
+        Builds the whole dispatch table up front, so that parallel visits only read it.
+         */
+        void prepare() {
+            for (final GedcomTag tag : GedcomTag.values()) {
+                this.dispatch.computeIfAbsent(tag, this::visitorsFor);
+            }
+        }
+
+        private List<RecordVisitor> visitorsFor(final GedcomTag tag) {
+            final List<RecordVisitor> visitors = new ArrayList<>();
+            for (final Registration r : this.registrations) {
+                if (r.tag == null || r.tag.equals(tag)) {
+                    visitors.add(r.visitor);
+                }
+            }
+            return visitors;
+        }
+    }
+
+    private final List<Stage> stages = new ArrayList<>();
+    private Metrics.Phase phase;
+    private boolean parallel;
+    private Function<TreeNode<GedcomLine>, ?> group;
+
+    RecordPass() {
+        this.stages.add(new Stage());
+    }
+
+    /**
+     * Visitors and finishers registered after this call are counted in the given phase
+     * (or in none, if null).
+     */
+    RecordPass phase(final Metrics.Phase phase) {
+        this.phase = phase;
+        return this;
+    }
+
+    /**
+     * Whether {@link #run} visits the records (of each stage) in parallel.
+     * Default is false.
+     */
+    RecordPass parallel(final boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
+    /**
+     * For parallel passes whose visitors change something shared by more than one
+     * record: records with the same key (by identity, for example the NEW record they
+     * all change) are visited one after another, in order, by one thread. Records with
+     * a null key are visited independently. Keys are taken just before the records
+     * are visited.
+     */
+    RecordPass groupBy(final Function<TreeNode<GedcomLine>, ?> group) {
+        this.group = group;
+        return this;
+    }
+
+    /**
+     * Registers a visitor for records with the given tag.
+     */
+    RecordPass on(final GedcomTag tag, final RecordVisitor visitor) {
+        current().registrations.add(new Registration(Objects.requireNonNull(tag), timed(visitor)));
+        current().dispatch.clear();
+        return this;
+    }
+
+    /**
+     * Registers a visitor for every record.
+     */
+    RecordPass onEach(final RecordVisitor visitor) {
+        current().registrations.add(new Registration(null, timed(visitor)));
+        current().dispatch.clear();
+        return this;
+    }
+
+    /**
+     * Registers an action to run before the current stage visits any record
+     * (for example, to log the heading of a phase just before its messages).
+     */
+    RecordPass onStart(final Runnable starter) {
+        current().starters.add(starter);
+        return this;
+    }
+
+    /**
+     * Registers an action to run after the current stage has visited every record.
+     */
+    RecordPass onFinish(final Runnable finisher) {
+        current().finishers.add(this.phase == null ? finisher : this.phase.timed(finisher));
+        return this;
+    }
+
+    /**
+     * Starts a new stage. Visitors registered after this call will not see any
+     * record until the visitors registered before it have seen all records.
+     */
+    RecordPass then() {
+        this.stages.add(new Stage());
+        return this;
+    }
+
+    void run(final Iterable<TreeNode<GedcomLine>> records) {
+        List<TreeNode<GedcomLine>> list = null;
+        for (final Stage stage : this.stages) {
+            if (stage.starters.isEmpty() && stage.registrations.isEmpty() && stage.finishers.isEmpty()) {
+                continue;
+            }
+            stage.start();
+            if (this.parallel) {
+                if (list == null) {
+                    list = new ArrayList<>(4096);
+                    records.forEach(list::add);
+                }
+                stage.prepare();
+                if (this.group == null) {
+                    Deferred.forEachInOrder(list, stage::visit);
+                } else {
+                    Deferred.forEachInOrder(list, this.group, stage::visit);
+                }
+            } else {
+                for (final TreeNode<GedcomLine> top : records) {
+                    stage.visit(top);
+                }
+            }
+            stage.finishers.forEach(Runnable::run);
+        }
+    }
+
+    /**
+     * For passes driven one record at a time (instead of by {@link #run}):
+     * feeds one record to the visitors of every stage, stage by stage.
+     * Call {@link #finish()} after the last record.
+     */
+    void visit(final TreeNode<GedcomLine> top) {
+        visit(Collections.singletonList(top), t -> { });
+    }
+
+    /**
+     * Like {@link #visit(TreeNode)}, for records that must be visited together as
+     * {@link #run} visits them: every one by the visitors of a stage before any by
+     * the visitors of the next stage. Each record is given to before just before
+     * it is visited (in each stage).
+     */
+    void visit(final List<TreeNode<GedcomLine>> tops, final Consumer<TreeNode<GedcomLine>> before) {
+        for (final Stage stage : this.stages) {
+            stage.start();
+            for (final TreeNode<GedcomLine> top : tops) {
+                before.accept(top);
+                stage.visit(top);
+            }
+        }
+    }
+
+    void finish() {
+        for (final Stage stage : this.stages) {
+            stage.start();
+            stage.finishers.forEach(Runnable::run);
+        }
+    }
+
+    private RecordVisitor timed(final RecordVisitor visitor) {
+        return this.phase == null ? visitor : this.phase.timed(visitor);
+    }
+
+    private Stage current() {
+        return this.stages.get(this.stages.size() - 1);
+    }
+}
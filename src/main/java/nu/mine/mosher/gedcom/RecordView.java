@@ -0,0 +1,111 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.collection.TreeNode;
+
+import java.util.*;
+
+/**
+ * Read-only view of one GEDCOM node, with its children indexed by tag.
+ * Standard tags are keyed by {@link GedcomTag} identity; non-standard tags
+ * (such as _XY or _APID) are keyed by their tag string.
+ *
+ * The index is built once, when the view is created. Values are always read
+ * from the current line of each child node, so lines replaced in place (for
+ * example by {@link TreeNode#setObject}) are seen, but children added to the
+ * node afterwards are not.
+ */
+final class RecordView {
+    private final TreeNode<GedcomLine> node;
+    private final Map<Object, List<TreeNode<GedcomLine>>> mapTagToChildren;
+    // children keyed by their tag string (see count)
+    private final List<TreeNode<GedcomLine>> custom;
+
+    RecordView(final TreeNode<GedcomLine> node) {
+        this.node = node;
+        final Map<Object, List<TreeNode<GedcomLine>>> map = new HashMap<>();
+        List<TreeNode<GedcomLine>> custom = Collections.emptyList();
+        for (final TreeNode<GedcomLine> c : node) {
+            final GedcomLine line = c.getObject();
+            if (line != null) {
+                final Object key = key(line);
+                map.computeIfAbsent(key, k -> new ArrayList<>(2)).add(c);
+                if (key instanceof String) {
+                    if (custom.isEmpty()) {
+                        custom = new ArrayList<>(2);
+                    }
+                    custom.add(c);
+                }
+            }
+        }
+        this.mapTagToChildren = map;
+        this.custom = custom;
+    }
+
+    private static Object key(final GedcomLine line) {
+        final GedcomTag tag = line.getTag();
+        return tag.name().equals(line.getTagString()) ? tag : line.getTagString();
+    }
+
+    TreeNode<GedcomLine> node() {
+        return this.node;
+    }
+
+    List<TreeNode<GedcomLine>> children(final GedcomTag tag) {
+        return get(tag);
+    }
+
+    List<TreeNode<GedcomLine>> children(final String customTag) {
+        return get(customTag);
+    }
+
+    TreeNode<GedcomLine> first(final GedcomTag tag) {
+        return first(get(tag));
+    }
+
+    TreeNode<GedcomLine> first(final String customTag) {
+        return first(get(customTag));
+    }
+
+    /**
+     * Counts the children with the given tag, as {@link GedcomLine#getTag} gives it
+     * (so, unlike {@link #children}, all non-standard tags count as {@link GedcomTag#UNKNOWN}).
+     */
+    int count(final GedcomTag tag) {
+        int n = get(tag).size();
+        for (final TreeNode<GedcomLine> c : this.custom) {
+            if (c.getObject().getTag().equals(tag)) {
+                ++n;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Gets the value (or pointer) of the first child with the given tag.
+     * @return value, pointer, or empty string if there is no such child
+     */
+    String value(final GedcomTag tag) {
+        return value(first(tag));
+    }
+
+    String value(final String customTag) {
+        return value(first(customTag));
+    }
+
+    private List<TreeNode<GedcomLine>> get(final Object key) {
+        final List<TreeNode<GedcomLine>> children = this.mapTagToChildren.get(key);
+        return children == null ? Collections.emptyList() : Collections.unmodifiableList(children);
+    }
+
+    private static TreeNode<GedcomLine> first(final List<TreeNode<GedcomLine>> children) {
+        return children.isEmpty() ? null : children.get(0);
+    }
+
+    private static String value(final TreeNode<GedcomLine> c) {
+        if (c == null) {
+            return "";
+        }
+        final GedcomLine gedcomLine = c.getObject();
+        return gedcomLine.isPointer() ? gedcomLine.getPointer() : gedcomLine.getValue();
+    }
+}
@@ -0,0 +1,85 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.collection.TreeNode;
+
+import java.util.*;
+
+/**
+ * Cache of {@link RecordView}s, keyed by node identity, so that each record
+ * (and each of its events, citations, etc.) is indexed only once and the index
+ * is shared by all phases of the matcher. Also caches the {@link EventIndex}
+ * and {@link EventDates} of each (NEW) record.
+ *
+ * A cache can be backed by a shared one (see {@link #prebuilt}) that holds the
+ * views of a tree that many matchers read at the same time. The shared one is
+ * only read, never added to, so it needs no locking. The cache itself can be used
+ * by phases running at the same time (see {@link PhaseScheduler}): it is locked
+ * only to look up and add entries, not while a view is built (if two threads build
+ * the same view, the first one added wins).
+ */
+final class RecordViews {
+    private final Map<TreeNode<GedcomLine>, RecordView> cache = new IdentityHashMap<>(4096);
+    private final Map<TreeNode<GedcomLine>, EventIndex> events = new IdentityHashMap<>(1024);
+    private final Map<TreeNode<GedcomLine>, EventDates> dates = new IdentityHashMap<>(1024);
+    private final RecordViews shared;
+
+    RecordViews() {
+        this(null);
+    }
+
+    RecordViews(final RecordViews shared) {
+        this.shared = shared;
+    }
+
+    /**
+     * Builds the views of all the records of a tree, and of their items, ahead of time,
+     * so the result can be shared by concurrent matchers. The tree must not be changed
+     * afterwards.
+     */
+    static RecordViews prebuilt(final TreeNode<GedcomLine> root) {
+        final RecordViews views = new RecordViews();
+        for (final TreeNode<GedcomLine> top : root) {
+            views.of(top);
+            for (final TreeNode<GedcomLine> item : top) {
+                views.of(item);
+            }
+        }
+        return views;
+    }
+
+    RecordView of(final TreeNode<GedcomLine> node) {
+        if (this.shared != null) {
+            final RecordView view = this.shared.cache.get(node);
+            if (view != null) {
+                return view;
+            }
+        }
+        final RecordView view = get(this.cache, node);
+        return view != null ? view : put(this.cache, node, new RecordView(node));
+    }
+
+    EventIndex events(final TreeNode<GedcomLine> top) {
+        final EventIndex index = get(this.events, top);
+        return index != null ? index : put(this.events, top, new EventIndex(top, this));
+    }
+
+    EventDates dates(final TreeNode<GedcomLine> top) {
+        final EventDates index = get(this.dates, top);
+        return index != null ? index : put(this.dates, top, new EventDates(top, this));
+    }
+
+    private synchronized <T> T get(final Map<TreeNode<GedcomLine>, T> map, final TreeNode<GedcomLine> node) {
+        return map.get(node);
+    }
+
+    private synchronized <T> T put(final Map<TreeNode<GedcomLine>, T> map, final TreeNode<GedcomLine> node, final T built) {
+        final T existing = map.putIfAbsent(node, built);
+        return existing != null ? existing : built;
+    }
+
+    synchronized void clear() {
+        this.cache.clear();
+        this.events.clear();
+        this.dates.clear();
+    }
+}
@@ -0,0 +1,11 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.collection.TreeNode;
+
+/**
+ * Receives top-level (0-level) records during a {@link RecordPass}.
+ */
+@FunctionalInterface
+interface RecordVisitor {
+    void visit(TreeNode<GedcomLine> top);
+}
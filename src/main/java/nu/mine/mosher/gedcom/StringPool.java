@@ -0,0 +1,72 @@
+package nu.mine.mosher.gedcom;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shares equal strings, so that values repeated all over a file (places, dates,
+ * names, source titles, tags) are held in memory only once.
+ *
+ * Only short strings are pooled: long ones (such as note text) are rarely
+ * repeated, and would only fill the pool. Unlike {@link String#intern}, the pool
+ * is dropped (and can be garbage collected) once loading is done.
+ *
+ * Not thread-safe; use one pool per thread (or per file).
+ */
+final class StringPool {
+    private static final int MAX_LENGTH = 120;
+
+    private final Map<String, String> pool = new HashMap<>(1 << 14);
+    private long cLookups;
+    private long cShared;
+    private long cBytesSaved;
+
+    /**
+     * @return the pooled string equal to the given one (which is pooled if it is the first)
+     */
+    String share(final String s) {
+        if (s.isEmpty() || s.length() > MAX_LENGTH) {
+            return s;
+        }
+        ++this.cLookups;
+        final String pooled = this.pool.putIfAbsent(s, s);
+        if (pooled == null) {
+            return s;
+        }
+        if (pooled != s) {
+            ++this.cShared;
+            this.cBytesSaved += size(s);
+        }
+        return pooled;
+    }
+
+    /**
+     * Estimated heap (in bytes) that sharing has saved so far.
+     */
+    long bytesSaved() {
+        return this.cBytesSaved;
+    }
+
+    @Override
+    public String toString() {
+        return this.cShared + " of " + this.cLookups + " values shared (" + this.pool.size() + " distinct), about " + (this.cBytesSaved >> 20) + " MB saved";
+    }
+
+    /*
+    Heap size of a String (object plus its array, assuming compact one-byte characters),
+    on a 64-bit VM with compressed pointers.
+     */
+    private static long size(final String s) {
+        return 24 + ((16 + s.length() + 7) & ~7);
+    }
+
+    /**
+     * Heap in use (in MB), after a full garbage collection. Only for reporting,
+     * because collecting can take a while for a big heap.
+     */
+    static long heapInUse() {
+        final Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return (runtime.totalMemory() - runtime.freeMemory()) >> 20;
+    }
+}
@@ -0,0 +1,134 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.gedcom.date.DatePeriod;
+import nu.mine.mosher.gedcom.date.parser.GedcomDateValueParser;
+
+import java.io.StringReader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resolves GEDCOM date values to the year of their earliest start date, as a string
+ * (or an empty string if the date cannot be parsed). Results are memoized per date
+ * value, because the same values ("ABT 1850") repeat across many records.
+ *
+ * Simple, exact dates ("1850", "MAR 1850", "12 MAR 1850") are resolved without the
+ * full parser. Anything else goes to {@link GedcomDateValueParser}. Values that fail
+ * to parse are counted (see {@link #toString()}).
+ */
+final class YearResolver {
+    private static final String[] MONTHS = {
+        "JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC"
+    };
+    private static final int[] DAYS = {
+        31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31
+    };
+
+    private final ConcurrentHashMap<String, String> cache = new ConcurrentHashMap<>(1024);
+    private final LongAdder cFast = new LongAdder();
+    private final LongAdder cParsed = new LongAdder();
+    private final LongAdder cFailed = new LongAdder();
+
+    String year(final String date) {
+        final String cached = this.cache.get(date);
+        if (cached != null) {
+            return cached;
+        }
+        return this.cache.computeIfAbsent(date, this::resolve);
+    }
+
+    void clear() {
+        this.cache.clear();
+        this.cFast.reset();
+        this.cParsed.reset();
+        this.cFailed.reset();
+    }
+
+    private String resolve(final String date) {
+        final String fast = fastYear(date);
+        if (fast != null) {
+            this.cFast.increment();
+            return fast;
+        }
+        try {
+            final DatePeriod d = new GedcomDateValueParser(new StringReader(date)).parse();
+            this.cParsed.increment();
+            return Integer.toString(d.getStartDate().getEarliest().getYear());
+        } catch (final VirtualMachineError e) {
+            throw e;
+        } catch (final Throwable e) {
+            // the parser can throw Errors (from its tokenizer) as well as ParseException, etc.
+            this.cFailed.increment();
+            Log.debug("Cannot parse date: {} ({})", date, e);
+            return "";
+        }
+    }
+
+    /*
+    "YYYY", "MON YYYY", or "D MON YYYY" (or "DD MON YYYY"), with a four-digit year,
+    and a day that the month has (so "31 FEB 1850" is left to the parser):
+    the year is just the last four characters. Returns null for anything else.
+     */
+    static String fastYear(final String date) {
+        final int n = date.length();
+        if (n < 4 || !isYear(date, n - 4)) {
+            return null;
+        }
+        if (n == 4) {
+            return date;
+        }
+        final int month = n < 8 || date.charAt(n - 5) != ' ' ? -1 : month(date, n - 8);
+        if (month < 0) {
+            return null;
+        }
+        final String year = date.substring(n - 4);
+        if (n == 8) {
+            return year;
+        }
+        if (date.charAt(n - 9) != ' ') {
+            return null;
+        }
+        final int cDay = n - 9;
+        if (cDay < 1 || cDay > 2 || !isDigit(date.charAt(0)) || !isDigit(date.charAt(cDay - 1))) {
+            return null;
+        }
+        final int day = Integer.parseInt(date.substring(0, cDay));
+        return 1 <= day && day <= daysIn(month, Integer.parseInt(year)) ? year : null;
+    }
+
+    /*
+    Gregorian (the GEDCOM default calendar)
+     */
+    private static int daysIn(final int month, final int year) {
+        if (month == 1 && !(year % 4 == 0 && (year % 100 != 0 || year % 400 == 0))) {
+            return 28;
+        }
+        return DAYS[month];
+    }
+
+    private static boolean isYear(final String s, final int i) {
+        return '1' <= s.charAt(i) && s.charAt(i) <= '9' &&
+            isDigit(s.charAt(i + 1)) && isDigit(s.charAt(i + 2)) && isDigit(s.charAt(i + 3));
+    }
+
+    private static boolean isDigit(final char c) {
+        return '0' <= c && c <= '9';
+    }
+
+    /*
+    index (0 = JAN) of the month at i, or -1
+     */
+    private static int month(final String s, final int i) {
+        for (int month = 0; month < MONTHS.length; ++month) {
+            if (s.startsWith(MONTHS[month], i)) {
+                return month;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "dates: " + this.cache.size() + " distinct, " + this.cFast.sum() + " simple, " + this.cParsed.sum() + " parsed, " + this.cFailed.sum() + " failed to parse";
+    }
+}
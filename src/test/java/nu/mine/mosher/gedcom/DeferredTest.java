@@ -0,0 +1,44 @@
+package nu.mine.mosher.gedcom;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class DeferredTest {
+    /*
+    Every seventh item is in one group, whose items are spread over many chunks:
+    they must be visited by one thread, in order; and all effects must still come
+    out in the order of the items.
+     */
+    @Test
+    void groupIsVisitedInOrderByOneThread() {
+        final List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < 5_000; ++i) {
+            items.add(i);
+        }
+        final Object shared = new Object();
+        final List<Integer> visited = Collections.synchronizedList(new ArrayList<>());
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<>());
+        final List<Integer> effects = new ArrayList<>();
+
+        Deferred.forEachInOrder(items, i -> i % 7 == 0 ? shared : null, i -> {
+            if (i % 7 == 0) {
+                visited.add(i);
+                threads.add(Thread.currentThread());
+            }
+            Deferred.run(() -> effects.add(i));
+        });
+
+        final List<Integer> group = new ArrayList<>();
+        for (final Integer i : items) {
+            if (i % 7 == 0) {
+                group.add(i);
+            }
+        }
+        assertEquals(group, visited);
+        assertEquals(1, threads.size());
+        assertEquals(items, effects);
+    }
+}
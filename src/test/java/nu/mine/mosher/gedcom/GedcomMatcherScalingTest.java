@@ -0,0 +1,186 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.collection.TreeNode;
+import nu.mine.mosher.gedcom.exception.InvalidLevel;
+import nu.mine.mosher.gedcom.model.Loader;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.time.Duration;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the matcher on pairs from {@link GedcomPairGenerator}, of increasing size, and
+ * checks that it undoes what the generator did to NEW (renumbered IDs, converted
+ * dates, dropped NOTEs and QUAYs), within a budget of time and heap for each size.
+ *
+ * The budgets are generous (a slow, shared build machine should pass); they are meant
+ * to catch a change that makes the matcher quadratic, or makes it keep far more than
+ * the trees in memory.
+ *
+ * The largest size, about the size of our real exports, is tagged slow; the build
+ * runs it only when asked to (see build.gradle).
+ */
+final class GedcomMatcherScalingTest {
+    /*
+    Retained heap allowed for each INDI: both trees (each INDI with its events, and its
+    share of the FAMs, SOURs, etc.) and the matcher's indexes and maps.
+     */
+    private static final long HEAP_PER_INDI = 64L * 1024L;
+    private static final long HEAP_FIXED = 32L * 1024L * 1024L;
+
+    @BeforeAll
+    static void quiet() {
+        Log.setLevel("ERROR");
+    }
+
+    @AfterAll
+    static void loud() {
+        Log.setLevel("INFO");
+    }
+
+    @Test
+    void small() throws IOException, InvalidLevel {
+        check(100, Duration.ofSeconds(5));
+    }
+
+    @Test
+    void medium() throws IOException, InvalidLevel {
+        check(1_000, Duration.ofSeconds(10));
+    }
+
+    @Test
+    void large() throws IOException, InvalidLevel {
+        check(10_000, Duration.ofSeconds(30));
+    }
+
+    @Test
+    @Tag("slow")
+    void huge() throws IOException, InvalidLevel {
+        check(100_000, Duration.ofSeconds(300));
+    }
+
+    private static void check(final int cIndi, final Duration budget) throws IOException, InvalidLevel {
+        final long heapBefore = usedHeap();
+
+        final StringWriter textOld = new StringWriter(cIndi * 512);
+        final StringWriter textNew = new StringWriter(cIndi * 512);
+        final GedcomPairGenerator.Summary summary = GedcomPairGenerator.generate(cIndi, 1L, textOld, textNew);
+        final Loader old = TestGedcom.load(textOld.toString(), "old.ged");
+        final Loader anc = TestGedcom.load(textNew.toString(), "new.ged");
+
+        final GedcomMatcher matcher = new GedcomMatcher();
+        final long start = System.nanoTime();
+        matcher.matchAndUpdate(old, anc);
+        final Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        final long heap = usedHeap() - heapBefore;
+        final long heapBudget = HEAP_FIXED + HEAP_PER_INDI * cIndi;
+
+        assertTrue(elapsed.compareTo(budget) <= 0, cIndi + " INDIs: matching took " + elapsed + ", budget " + budget);
+        assertTrue(heap <= heapBudget, cIndi + " INDIs: retained " + heap + " bytes of heap, budget " + heapBudget);
+
+        checkRestored(summary, old, anc);
+
+        // keep everything measured reachable until after it was measured
+        assertNotNull(matcher);
+    }
+
+    /*
+    NEW, after matching, must have OLD's IDs, and (within its INDIs) OLD's dates, NOTE
+    pointers, and QUAYs. The matcher does not match FAMs, so their IDs (and MARR dates)
+    are left as they are in NEW.
+     */
+    private static void checkRestored(final GedcomPairGenerator.Summary summary, final Loader old, final Loader anc) {
+        final Map<String, TreeNode<GedcomLine>> recordsOld = TestGedcom.records(old);
+        final Map<String, TreeNode<GedcomLine>> recordsNew = TestGedcom.records(anc);
+
+        int cIndi = 0, cNote = 0, cQuay = 0;
+        for (final Map.Entry<String, TreeNode<GedcomLine>> e : recordsOld.entrySet()) {
+            final TreeNode<GedcomLine> recOld = e.getValue();
+            final GedcomTag tag = recOld.getObject().getTag();
+            if (tag.equals(GedcomTag.FAM)) {
+                continue;
+            }
+
+            final TreeNode<GedcomLine> recNew = recordsNew.get(e.getKey());
+            assertNotNull(recNew, "missing from NEW: " + recOld.getObject());
+            assertEquals(tag, recNew.getObject().getTag(), "ID " + e.getKey());
+            assertEquals(recOld.getObject().getValue(), recNew.getObject().getValue(), "ID " + e.getKey());
+            assertEquals(firstChild(recOld), firstChild(recNew), "ID " + e.getKey());
+
+            if (tag.equals(GedcomTag.INDI)) {
+                ++cIndi;
+                cQuay += checkEvents(e.getKey(), recOld, recNew);
+            } else if (tag.equals(GedcomTag.NOTE)) {
+                ++cNote;
+            }
+        }
+
+        assertEquals(summary.cIndi, cIndi);
+        assertEquals(summary.cNote, cNote);
+        assertEquals(summary.cQuaysDropped, cQuay);
+    }
+
+    /**
+     * @return count of QUAYs checked
+     */
+    private static int checkEvents(final String id, final TreeNode<GedcomLine> indiOld, final TreeNode<GedcomLine> indiNew) {
+        final List<TreeNode<GedcomLine>> eventsOld = events(indiOld);
+        final List<TreeNode<GedcomLine>> eventsNew = events(indiNew);
+        assertEquals(eventsOld.size(), eventsNew.size(), "events of " + id);
+
+        int cQuay = 0;
+        for (int i = 0; i < eventsOld.size(); ++i) {
+            final TreeNode<GedcomLine> evOld = eventsOld.get(i);
+            final TreeNode<GedcomLine> evNew = eventsNew.get(i);
+            final String where = id + " " + evOld.getObject().getTagString();
+            assertEquals(evOld.getObject().getTag(), evNew.getObject().getTag(), where);
+            assertEquals(TestGedcom.values(evOld, GedcomTag.DATE), TestGedcom.values(evNew, GedcomTag.DATE), "DATE of " + where);
+            assertEquals(new HashSet<>(TestGedcom.values(evOld, GedcomTag.NOTE)), new HashSet<>(TestGedcom.values(evNew, GedcomTag.NOTE)), "NOTEs of " + where);
+
+            final List<String> quaysOld = quays(evOld);
+            assertEquals(quaysOld, quays(evNew), "QUAYs of " + where);
+            cQuay += quaysOld.size();
+        }
+        return cQuay;
+    }
+
+    private static List<TreeNode<GedcomLine>> events(final TreeNode<GedcomLine> indi) {
+        final List<TreeNode<GedcomLine>> events = new ArrayList<>();
+        for (final TreeNode<GedcomLine> item : indi) {
+            if (item.children().hasNext()) {
+                events.add(item);
+            }
+        }
+        return events;
+    }
+
+    private static List<String> quays(final TreeNode<GedcomLine> event) {
+        final List<String> quays = new ArrayList<>();
+        for (final TreeNode<GedcomLine> item : event) {
+            if (item.getObject().getTag().equals(GedcomTag.SOUR)) {
+                quays.addAll(TestGedcom.values(item, GedcomTag.QUAY));
+            }
+        }
+        return quays;
+    }
+
+    private static String firstChild(final TreeNode<GedcomLine> record) {
+        final Iterator<TreeNode<GedcomLine>> i = record.iterator();
+        return i.hasNext() ? i.next().getObject().toString() : "";
+    }
+
+    private static long usedHeap() {
+        final Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,383 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.collection.TreeNode;
+import nu.mine.mosher.gedcom.exception.InvalidLevel;
+import nu.mine.mosher.gedcom.model.Loader;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class GedcomMatcherTest {
+    @BeforeAll
+    static void quiet() {
+        Log.setLevel("ERROR");
+    }
+
+    @AfterAll
+    static void loud() {
+        Log.setLevel("INFO");
+    }
+
+    /*
+    Alice (I1) is gone from NEW, and Ancestry exported Bob (I2) as I1. Bob is matched,
+    and gets back his ID, I2. Alice is not matched, so nothing of hers (her RESI's NOTE,
+    her _XY) may be restored into the NEW record that was exported as I1: that is Bob.
+     */
+    @Test
+    void unmatchedRecordDoesNotTakeReusedId() throws IOException, InvalidLevel {
+        final Loader old = TestGedcom.loadLines("old.ged",
+            "0 @I1@ INDI",
+            "1 NAME Alice /Smith/",
+            "1 BIRT",
+            "2 DATE 1850",
+            "1 RESI",
+            "2 DATE FROM 1870",
+            "2 NOTE @T1@",
+            "1 _XY 41.1 -72.1",
+            "0 @I2@ INDI",
+            "1 NAME Bob /Jones/",
+            "1 BIRT",
+            "2 DATE 1860",
+            "1 RESI",
+            "2 DATE FROM 1880",
+            "2 NOTE @T2@",
+            "1 _XY 42.2 -73.2",
+            "0 @T1@ NOTE Alice's note",
+            "0 @T2@ NOTE Bob's note");
+        final Loader anc = TestGedcom.loadLines("new.ged",
+            "0 @I1@ INDI",
+            "1 NAME Bob /Jones/",
+            "1 BIRT",
+            "2 DATE 1860",
+            "1 RESI",
+            "2 DATE AFT 1880");
+
+        new GedcomMatcher().matchAndUpdate(old, anc);
+
+        final Map<String, TreeNode<GedcomLine>> records = TestGedcom.records(anc);
+        assertNull(records.get("I1"));
+        final TreeNode<GedcomLine> bob = records.get("I2");
+        assertNotNull(bob);
+
+        final TreeNode<GedcomLine> resi = TestGedcom.child(bob, GedcomTag.RESI);
+        assertEquals(Collections.singletonList("FROM 1880"), TestGedcom.values(resi, GedcomTag.DATE));
+        assertEquals(Collections.singletonList("T2"), TestGedcom.values(resi, GedcomTag.NOTE));
+
+        final List<String> xys = new ArrayList<>();
+        for (final TreeNode<GedcomLine> item : bob) {
+            if (item.getObject().getTagString().equals("_XY")) {
+                xys.add(item.getObject().getValue());
+            }
+        }
+        assertEquals(Collections.singletonList("42.2 -73.2"), xys);
+    }
+
+    /*
+    Two OLD INDIs with the same name and birth year (I1 and I300, far enough apart to
+    be in different chunks of the parallel date pass) both match NEW's one John, so
+    both restore their dates into it (I1 the RESI, I300 the OCCU). Merging in parallel
+    must give just what merging sequentially gives.
+     */
+    @Test
+    void duplicatesRestoreDatesIntoOneRecord() throws IOException, InvalidLevel {
+        final List<String> old = new ArrayList<>();
+        for (int i = 1; i <= 300; ++i) {
+            final boolean john = i == 1 || i == 300;
+            old.addAll(Arrays.asList("0 @I" + i + "@ INDI", "1 NAME " + (john ? "John" : "Person" + i) + " /Doe/", "1 BIRT", "2 DATE 1800"));
+            if (i == 300) {
+                old.addAll(Arrays.asList("1 OCCU", "2 DATE FROM 1840"));
+            } else {
+                old.addAll(Arrays.asList("1 RESI", "2 DATE FROM 1820 TO 1830"));
+            }
+        }
+        final List<String> anc = Arrays.asList(
+            "0 @I9999@ INDI",
+            "1 NAME John /Doe/",
+            "1 BIRT",
+            "2 DATE 1800",
+            "1 RESI",
+            "2 DATE BET 1820 AND 1830",
+            "1 OCCU",
+            "2 DATE AFT 1840");
+
+        final String sequential = merge(old, anc, false);
+        for (int run = 0; run < 10; ++run) {
+            assertEquals(sequential, merge(old, anc, true));
+        }
+        assertTrue(sequential.contains("\n1 RESI\n2 DATE FROM 1820 TO 1830\n1 OCCU\n2 DATE FROM 1840\n"), sequential);
+    }
+
+    /*
+    Streaming NEW gives just what merging it as a tree gives, also when OLD has
+    duplicates (two Johns, both restoring a date and a note into NEW's one John),
+    and with new top-level records (the notes), which both add after the trailer.
+     */
+    @Test
+    void streamIsTheSameAsTree(@TempDir final Path dir) throws IOException, InvalidLevel {
+        final StringWriter textOld = new StringWriter();
+        final StringWriter textNew = new StringWriter();
+        GedcomPairGenerator.generate(200, 1L, textOld, textNew);
+        final String john = "0 @I%d@ INDI\n1 NAME John /Dup/\n1 BIRT\n2 DATE 1800\n";
+        final String dupOld = String.format(john, 9001) + "1 RESI\n2 DATE FROM 1820 TO 1830\n2 NOTE @T9001@\n" +
+            String.format(john, 9002) + "1 OCCU\n2 DATE FROM 1840\n2 NOTE @T9002@\n" +
+            "0 @T9001@ NOTE First John's note\n0 @T9002@ NOTE Second John's note\n0 TRLR";
+        final String dupNew = String.format(john, 8001) + "1 RESI\n2 DATE BET 1820 AND 1830\n1 OCCU\n2 DATE AFT 1840\n0 TRLR";
+
+        final String old = dir.resolve("old.ged").toString();
+        final String anc = dir.resolve("new.ged").toString();
+        Files.write(Paths.get(old), textOld.toString().replace("0 TRLR", dupOld).getBytes(StandardCharsets.UTF_8));
+        Files.write(Paths.get(anc), textNew.toString().replace("0 TRLR", dupNew).getBytes(StandardCharsets.UTF_8));
+
+        final byte[] tree = stdout("--log=error", old, anc);
+        final byte[] stream = stdout("--log=error", "--stream", old, anc);
+        assertEquals(new String(tree, StandardCharsets.UTF_8), new String(stream, StandardCharsets.UTF_8));
+
+        final String text = new String(stream, StandardCharsets.UTF_8);
+        assertTrue(text.contains("\n1 RESI\n2 DATE FROM 1820 TO 1830\n2 NOTE @T9001@\n1 OCCU\n2 DATE FROM 1840\n2 NOTE @T9002@\n"), text);
+        assertTrue(text.endsWith("\n0 @T9001@ NOTE First John's note\n0 @T9002@ NOTE Second John's note\n"), text);
+        assertTrue(text.indexOf("\n0 TRLR\n") < text.indexOf("\n0 @T9001@ NOTE"), text);
+    }
+
+    private static String merge(final List<String> old, final List<String> anc, final boolean parallel) throws IOException, InvalidLevel {
+        final Loader loadNew = TestGedcom.loadLines("new.ged", anc.toArray(new String[0]));
+        final GedcomMatcher matcher = new GedcomMatcher();
+        matcher.parallelPhases(parallel);
+        matcher.matchAndUpdate(TestGedcom.loadLines("old.ged", old.toArray(new String[0])), loadNew);
+        return write(loadNew);
+    }
+
+    /*
+    A prepared OLD is matched from its match keys, found once; merging NEW into it
+    (again and again) must give just what merging NEW into OLD itself gives.
+     */
+    @Test
+    void preparedMergeIsTheSame() throws IOException, InvalidLevel {
+        final StringWriter textOld = new StringWriter();
+        final StringWriter textNew = new StringWriter();
+        GedcomPairGenerator.generate(200, 1L, textOld, textNew);
+
+        final Loader anc = TestGedcom.load(textNew.toString(), "new.ged");
+        new GedcomMatcher().matchAndUpdate(TestGedcom.load(textOld.toString(), "old.ged"), anc);
+        final String expected = write(anc);
+
+        final MergeEngine.Prepared old = new MergeEngine(false).prepare(TestGedcom.load(textOld.toString(), "old.ged").getGedcom());
+        for (int run = 0; run < 2; ++run) {
+            final Loader merged = TestGedcom.load(textNew.toString(), "new.ged");
+            old.merge(merged.getGedcom());
+            assertEquals(expected, write(merged));
+        }
+    }
+
+    /*
+    Nothing changed between the runs, so every NEW record (other than OBJEs, which are
+    always matched again) must be seen as unchanged, and get its previous decision;
+    including records with RINs, which the matcher blanks in what it writes.
+     */
+    @Test
+    void secondIncrementalRunSeesNoChanges(@TempDir final Path dir) throws IOException, InvalidLevel {
+        final StringWriter textOld = new StringWriter();
+        final StringWriter textNew = new StringWriter();
+        GedcomPairGenerator.generate(200, 1L, textOld, textNew);
+        final String rins = textNew.toString().replaceAll("(?m)^(0 @I(\\d+)@ INDI)$", "$1\n1 RIN $2");
+        assertNotEquals(textNew.toString(), rins);
+
+        final File fileOld = dir.resolve("old.ged").toFile();
+        Files.write(fileOld.toPath(), textOld.toString().getBytes(StandardCharsets.UTF_8));
+        final File fileState = dir.resolve("new.state").toFile();
+
+        final MatchState first = MatchState.load(fileState, fileOld.getPath(), false);
+        final Loader ancFirst = matchIncrementally(textOld.toString(), rins, first);
+        GedcomMatcher.saveState(first);
+
+        final MatchState second = MatchState.load(fileState, fileOld.getPath(), false);
+        final Loader ancSecond = matchIncrementally(textOld.toString(), rins, second);
+
+        int cRecords = 0;
+        for (final TreeNode<GedcomLine> top : TestGedcom.load(rins, "new.ged").getGedcom().getRoot()) {
+            if (top.getObject().hasID() && !top.getObject().getTag().equals(GedcomTag.OBJE)) {
+                ++cRecords;
+            }
+        }
+        assertEquals(0, second.changed(), second.toString());
+        assertEquals(cRecords, second.unchanged(), second.toString());
+        assertEquals(write(ancFirst), write(ancSecond));
+    }
+
+    /*
+    The merged file is the same, byte for byte, whether written to stdout or to --output,
+    by gedcom-lib or by the fused writer, or patched and then applied. NEW has a NOTE
+    that needs CONC and CONT lines, and has '@'s.
+     */
+    @Test
+    void outputIsTheSameEveryWay(@TempDir final Path dir) throws IOException, InvalidLevel {
+        final StringWriter textOld = new StringWriter();
+        final StringWriter textNew = new StringWriter();
+        GedcomPairGenerator.generate(200, 1L, textOld, textNew);
+        final String note = "0 @N9999@ NOTE " + LONG + "\n1 CONT " + LONG + "\n0 TRLR";
+        final String withNote = textNew.toString().replace("0 TRLR", note);
+        assertNotEquals(textNew.toString(), withNote);
+
+        final String old = dir.resolve("old.ged").toString();
+        final String anc = dir.resolve("new.ged").toString();
+        Files.write(Paths.get(old), textOld.toString().getBytes(StandardCharsets.UTF_8));
+        Files.write(Paths.get(anc), withNote.getBytes(StandardCharsets.UTF_8));
+
+        final byte[] stdout = stdout("--log=error", old, anc);
+        final String output = dir.resolve("out.ged").toString();
+        GedcomMatcher.main("--log=error", "--output=" + output, old, anc);
+        final byte[] fused = stdout("--log=error", "--fused-write", old, anc);
+        final String patch = dir.resolve("new.ged.gpatch").toString();
+        GedcomMatcher.main("--log=error", "--patch=" + patch, old, anc);
+        final byte[] applied = stdout("--log=error", "--apply=" + patch, anc);
+
+        assertArrayEquals(stdout, Files.readAllBytes(Paths.get(output)), "stdout and --output differ");
+        assertArrayEquals(stdout, fused, "gedcom-lib and --fused-write differ");
+        assertArrayEquals(stdout, applied, "merged and --apply differ");
+        assertTrue(new String(stdout, StandardCharsets.UTF_8).contains("@@"));
+    }
+
+    /*
+    A value of 163 characters, with spaces on both sides of where it is first split
+    (at 60), and '@'s on both sides of where it is next split (at 120).
+     */
+    private static final String VALUE =
+        "Letter of J. Smith to A. Smith, postmarked Corning, N.Y., 1 " +
+        " Jun 1925; address: box@corning.example, forwarded to the  @" +
+        "@ office. Two spaces:  and an ending space ";
+
+    // as written in GEDCOM
+    private static final String LONG = VALUE.replace("@", "@@");
+
+    /*
+    The fused writer splits and escapes values just as gedcom-lib does once the tree is
+    unconcatenated, and writes UTF-8, which (unlike gedcom-lib, which writes NEW's
+    character set) it declares.
+     */
+    @Test
+    void fusedWriterWritesWhatGedcomLibWrites() throws IOException, InvalidLevel {
+        final String[] lines = {
+            "0 @I1@ INDI",
+            "1 NAME John /Smith/",
+            "1 NOTE " + LONG,
+            "2 CONT",
+            "2 CONT " + LONG,
+            "2 SOUR @S1@",
+            "1 OCCU a@@b",
+            "0 @S1@ SOUR",
+            "1 TITL " + VALUE.substring(0, 60),
+            "1 TEXT " + VALUE.substring(0, 61)
+        };
+        final byte[] library = write(TestGedcom.loadLines("new.ged", lines).getGedcom(), false);
+        final byte[] fused = write(TestGedcom.loadLines("new.ged", lines).getGedcom(), true);
+        assertEquals(new String(library, StandardCharsets.UTF_8), new String(fused, StandardCharsets.UTF_8));
+
+        final String text = new String(fused, StandardCharsets.UTF_8);
+        assertTrue(text.contains("\n1 OCCU a@@b\n"), text);
+        assertTrue(text.contains("\n2 CONC " + VALUE.substring(60, 120).replace("@", "@@") + "\n"), text);
+        assertTrue(text.contains("\n1 TITL " + VALUE.substring(0, 60) + "\n1 TEXT"), text);
+    }
+
+    @Test
+    void fusedWriterDeclaresUtf8() throws IOException, InvalidLevel {
+        final Loader ascii = TestGedcom.load("0 HEAD\n1 CHAR ASCII\n0 @I1@ INDI\n1 NAME John /Smith/\n0 TRLR\n", "new.ged");
+        final String text = new String(write(ascii.getGedcom(), true), StandardCharsets.UTF_8);
+        assertTrue(text.startsWith("0 HEAD\n1 CHAR UTF-8\n"), text);
+    }
+
+    /*
+    An index parses OLD as UTF-8, so OLD of any other character set is not indexed.
+     */
+    @Test
+    void onlyUtf8IsIndexed(@TempDir final Path dir) throws IOException {
+        final String head = "0 HEAD\n1 CHAR %s\n0 @I1@ INDI\n1 NAME John /Smith/\n0 TRLR\n";
+        final String utf8 = dir.resolve("utf8.ged").toString();
+        final String ansel = dir.resolve("ansel.ged").toString();
+        Files.write(Paths.get(utf8), String.format(head, "UTF-8").getBytes(StandardCharsets.UTF_8));
+        Files.write(Paths.get(ansel), String.format(head, "ANSEL").getBytes(StandardCharsets.US_ASCII));
+
+        OldIndex.build(utf8);
+        assertNotNull(OldIndex.open(utf8));
+        assertThrows(IOException.class, () -> OldIndex.build(ansel));
+        assertFalse(OldIndex.indexFile(ansel).exists());
+    }
+
+    /*
+    A patch is written and applied against NEW read as UTF-8, so NEW of any other
+    character set is not patched.
+     */
+    @Test
+    void onlyUtf8IsPatched(@TempDir final Path dir) throws IOException {
+        final String old = dir.resolve("old.ged").toString();
+        final String anc = dir.resolve("new.ged").toString();
+        final String patch = dir.resolve("new.ged.gpatch").toString();
+        final String indi = "0 @I1@ INDI\n1 NAME John /Smith/\n0 TRLR\n";
+        Files.write(Paths.get(old), ("0 HEAD\n1 CHAR UTF-8\n" + indi).getBytes(StandardCharsets.UTF_8));
+        Files.write(Paths.get(anc), ("0 HEAD\n1 CHAR ANSEL\n" + indi).getBytes(StandardCharsets.US_ASCII));
+        Files.write(Paths.get(patch), "GEDCOM-PATCH 1 0\n".getBytes(StandardCharsets.UTF_8));
+
+        final IOException write = assertThrows(IOException.class, () -> GedcomMatcher.main("--log=error", "--patch=" + patch, old, anc));
+        assertTrue(write.getMessage().contains("not UTF-8"), write.getMessage());
+        final IOException apply = assertThrows(IOException.class, () -> GedcomPatch.apply(patch, anc, new GedcomRecordWriter(new ByteArrayOutputStream(), 60)));
+        assertTrue(apply.getMessage().contains("not UTF-8"), apply.getMessage());
+    }
+
+    @Test
+    void unknownOptionIsRejected() {
+        final IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> GedcomMatcher.main("--sequental", "old.ged", "new.ged"));
+        assertEquals("Unknown option: --sequental", e.getMessage());
+    }
+
+    @Test
+    void batchRejectsSingleOutputOptions(@TempDir final Path dir) throws IOException {
+        final String old = dir.resolve("old.ged").toString();
+        final String anc = dir.resolve("new.ged").toString();
+        final byte[] text = "0 HEAD\n1 CHAR UTF-8\n0 @I1@ INDI\n1 NAME John /Smith/\n0 TRLR\n".getBytes(StandardCharsets.UTF_8);
+        Files.write(Paths.get(old), text);
+        Files.write(Paths.get(anc), text);
+
+        for (final String option : Arrays.asList("--output=out.ged", "--gzip", "--patch", "--apply=new.ged.gpatch")) {
+            assertThrows(IllegalArgumentException.class, () -> GedcomMatcher.main("--log=error", "--batch", "--out=" + dir, option, old, anc), option);
+        }
+        assertFalse(dir.resolve("new.merged.ged").toFile().exists());
+    }
+
+    private static byte[] stdout(final String... args) throws IOException, InvalidLevel {
+        final PrintStream was = System.out;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(out));
+        try {
+            GedcomMatcher.main(args);
+        } finally {
+            System.setOut(was);
+        }
+        return out.toByteArray();
+    }
+
+    private static Loader matchIncrementally(final String textOld, final String textNew, final MatchState state) throws IOException, InvalidLevel {
+        final Loader anc = TestGedcom.load(textNew, "new.ged");
+        final GedcomMatcher matcher = new GedcomMatcher();
+        matcher.incremental(state);
+        matcher.matchAndUpdate(TestGedcom.load(textOld, "old.ged"), anc);
+        return anc;
+    }
+
+    private static String write(final Loader load) throws IOException {
+        return new String(write(load.getGedcom(), false), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] write(final GedcomTree tree, final boolean fused) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GedcomMatcher.saveGedcom(tree, out, fused);
+        return out.toByteArray();
+    }
+}
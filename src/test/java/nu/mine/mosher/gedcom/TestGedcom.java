@@ -0,0 +1,81 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.collection.TreeNode;
+import nu.mine.mosher.gedcom.exception.InvalidLevel;
+import nu.mine.mosher.gedcom.model.Loader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Loads GEDCOM text (as the matcher loads files), and finds things in the loaded trees, for the tests.
+ */
+final class TestGedcom {
+    private TestGedcom() {
+        throw new IllegalStateException();
+    }
+
+    static Loader load(final String text, final String name) throws IOException, InvalidLevel {
+        final byte[] gedcom = text.getBytes(StandardCharsets.UTF_8);
+        final GedcomTree gt = Gedcom.readFile(new BufferedInputStream(new ByteArrayInputStream(gedcom)));
+        new GedcomConcatenator(gt).concatenate();
+        final Loader loader = new Loader(gt, name);
+        loader.parse();
+        return loader;
+    }
+
+    /**
+     * @param lines lines of GEDCOM, without HEAD or TRLR
+     */
+    static Loader loadLines(final String name, final String... lines) throws IOException, InvalidLevel {
+        final StringBuilder s = new StringBuilder(256);
+        s.append("0 HEAD\n1 CHAR UTF-8\n");
+        for (final String line : lines) {
+            s.append(line).append('\n');
+        }
+        s.append("0 TRLR\n");
+        return load(s.toString(), name);
+    }
+
+    /**
+     * @return top-level records, by ID
+     */
+    static Map<String, TreeNode<GedcomLine>> records(final Loader load) {
+        final Map<String, TreeNode<GedcomLine>> records = new HashMap<>();
+        for (final TreeNode<GedcomLine> top : load.getGedcom().getRoot()) {
+            if (top.getObject().hasID()) {
+                if (records.put(top.getObject().getID(), top) != null) {
+                    throw new IllegalStateException("duplicate ID " + top.getObject().getID());
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return the values (or pointers) of the children of node with the given tag
+     */
+    static List<String> values(final TreeNode<GedcomLine> node, final GedcomTag tag) {
+        final List<String> values = new ArrayList<>();
+        for (final TreeNode<GedcomLine> child : node) {
+            final GedcomLine line = child.getObject();
+            if (line.getTag().equals(tag)) {
+                values.add(line.isPointer() ? line.getPointer() : line.getValue());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return the first child of node with the given tag, or null
+     */
+    static TreeNode<GedcomLine> child(final TreeNode<GedcomLine> node, final GedcomTag tag) {
+        for (final TreeNode<GedcomLine> child : node) {
+            if (child.getObject().getTag().equals(tag)) {
+                return child;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,44 @@
+package nu.mine.mosher.gedcom;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class YearResolverTest {
+    @Test
+    void simpleDates() {
+        assertEquals("1850", YearResolver.fastYear("1850"));
+        assertEquals("1850", YearResolver.fastYear("MAR 1850"));
+        assertEquals("1850", YearResolver.fastYear("1 MAR 1850"));
+        assertEquals("1850", YearResolver.fastYear("31 DEC 1850"));
+    }
+
+    @Test
+    void notSimple() {
+        assertNull(YearResolver.fastYear("ABT 1850"));
+        assertNull(YearResolver.fastYear("BET 1850 AND 1860"));
+        assertNull(YearResolver.fastYear("0850"));
+        assertNull(YearResolver.fastYear("123 MAR 1850"));
+        assertNull(YearResolver.fastYear("0 MAR 1850"));
+    }
+
+    @Test
+    void dayMustBeInMonth() {
+        assertNull(YearResolver.fastYear("31 FEB 1850"));
+        assertNull(YearResolver.fastYear("30 FEB 1852"));
+        assertNull(YearResolver.fastYear("31 APR 1850"));
+        assertNull(YearResolver.fastYear("31 JUN 1850"));
+        assertNull(YearResolver.fastYear("31 SEP 1850"));
+        assertNull(YearResolver.fastYear("31 NOV 1850"));
+        assertEquals("1850", YearResolver.fastYear("30 APR 1850"));
+        assertEquals("1850", YearResolver.fastYear("31 JUL 1850"));
+    }
+
+    @Test
+    void leapDay() {
+        assertEquals("1852", YearResolver.fastYear("29 FEB 1852"));
+        assertEquals("2000", YearResolver.fastYear("29 FEB 2000"));
+        assertNull(YearResolver.fastYear("29 FEB 1850"));
+        assertNull(YearResolver.fastYear("29 FEB 1900"));
+    }
+}